@@ -0,0 +1,99 @@
+package db.pool;
+
+/**
+ * Batch rows of a prepared statement, kept for the audit log. Only the
+ * first and the last rows are kept, the rows in between are only counted,
+ * so a batch of any size holds a fixed amount of memory.
+ */
+class BatchCapture
+{
+    private final ParameterCapture[] head;
+    // last rows, used as a ring once the head is full
+    private final ParameterCapture[] tail;
+    private int rows;
+    private long bytes;
+
+    /**
+     * @param keep
+     *            the number of rows kept at the start and at the end of the
+     *            batch.
+     */
+    BatchCapture(int keep)
+    {
+        head = new ParameterCapture[keep];
+        tail = new ParameterCapture[keep];
+    }
+
+    /**
+     * Adds a copy of the row to the batch.
+     */
+    void add(ParameterCapture row)
+    {
+        ParameterCapture[] slots = head;
+        int slot = rows;
+        if (slot >= head.length)
+        {
+            if (tail.length == 0) slot = -1;
+            else
+            {
+                slots = tail;
+                slot = (rows - head.length) % tail.length;
+            }
+        }
+        if (slot >= 0)
+        {
+            if (slots[slot] == null) slots[slot] = new ParameterCapture(row.size());
+            slots[slot].copyFrom(row);
+        }
+        rows++;
+        bytes += row.estimateBytes();
+    }
+
+    void reset()
+    {
+        // the captures are reused by the next batch
+        for (int i = 0; i < head.length; i++)
+            if (head[i] != null) head[i].clear();
+        for (int i = 0; i < tail.length; i++)
+            if (tail[i] != null) tail[i].clear();
+        rows = 0;
+        bytes = 0;
+    }
+
+    int getRowCount()
+    {
+        return rows;
+    }
+
+    long getTotalBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * Appends the kept rows, with a marker for the rows left out, followed by
+     * the batch totals.
+     */
+    void appendTo(StringBuffer buffer)
+    {
+        int headRows = Math.min(rows, head.length);
+        for (int i = 0; i < headRows; i++)
+            head[i].appendTo(buffer);
+        int tailRows = Math.min(rows - headRows, tail.length);
+        int skipped = rows - headRows - tailRows;
+        if (skipped > 0)
+        {
+            buffer.append("\n... ");
+            buffer.append(skipped);
+            buffer.append(" rows not shown ...");
+        }
+        // oldest of the last rows first
+        int first = tailRows < tail.length ? 0 : (rows - head.length) % tail.length;
+        for (int i = 0; i < tailRows; i++)
+            tail[(first + i) % tail.length].appendTo(buffer);
+        buffer.append("\nBatch rows=");
+        buffer.append(rows);
+        buffer.append(", parameter bytes=");
+        buffer.append(bytes);
+    }
+}
@@ -33,6 +33,8 @@ public class DBCallableStatement extends DBStatement implements
 	private Map<Object, Object> paramMap;
 	private Map<Integer, Object> outMap;
 	private String sql;
+	// rows added to the batch, cleared before the statement is reused
+	private boolean batchPending;
 
 	/**
 	 * @param statement
@@ -47,7 +49,8 @@ public class DBCallableStatement extends DBStatement implements
 	}
 
 	protected void addParam(Object index, Object value) {
-		paramMap.put(index, value);
+		if (isAudited())
+			paramMap.put(index, value);
 	}
 
 	/*
@@ -57,7 +60,8 @@ public class DBCallableStatement extends DBStatement implements
 	 */
 	public void registerOutParameter(int parameterIndex, int sqlType)
 			throws SQLException {
-		outMap.put(parameterIndex, "" + sqlType);
+		if (isAudited())
+			outMap.put(parameterIndex, "" + sqlType);
 		((CallableStatement) wrappedStatement).registerOutParameter(
 				parameterIndex, sqlType);
 	}
@@ -69,7 +73,8 @@ public class DBCallableStatement extends DBStatement implements
 	 */
 	public void registerOutParameter(int parameterIndex, int sqlType, int scale)
 			throws SQLException {
-		outMap.put(parameterIndex, "" + sqlType);
+		if (isAudited())
+			outMap.put(parameterIndex, "" + sqlType);
 		((CallableStatement) wrappedStatement).registerOutParameter(
 				parameterIndex, sqlType, scale);
 	}
@@ -864,7 +869,12 @@ public class DBCallableStatement extends DBStatement implements
 	 * @see java.sql.PreparedStatement#executeQuery()
 	 */
 	public ResultSet executeQuery() throws SQLException {
-		return add(((CallableStatement) wrappedStatement).executeQuery());
+		long starttime = beginExecute();
+		try {
+			return add(((CallableStatement) wrappedStatement).executeQuery());
+		} finally {
+			endExecute(starttime);
+		}
 	}
 
 	/*
@@ -873,7 +883,12 @@ public class DBCallableStatement extends DBStatement implements
 	 * @see java.sql.PreparedStatement#executeUpdate()
 	 */
 	public int executeUpdate() throws SQLException {
-		return ((CallableStatement) wrappedStatement).executeUpdate();
+		long starttime = beginExecute();
+		try {
+			return ((CallableStatement) wrappedStatement).executeUpdate();
+		} finally {
+			endExecute(starttime);
+		}
 	}
 
 	/*
@@ -1113,7 +1128,12 @@ public class DBCallableStatement extends DBStatement implements
 	 * @see java.sql.PreparedStatement#execute()
 	 */
 	public boolean execute() throws SQLException {
-		return ((CallableStatement) wrappedStatement).execute();
+		long starttime = beginExecute();
+		try {
+			return ((CallableStatement) wrappedStatement).execute();
+		} finally {
+			endExecute(starttime);
+		}
 	}
 
 	/*
@@ -1122,6 +1142,7 @@ public class DBCallableStatement extends DBStatement implements
 	 * @see java.sql.PreparedStatement#addBatch()
 	 */
 	public void addBatch() throws SQLException {
+		batchPending = true;
 		((CallableStatement) wrappedStatement).addBatch();
 	}
 
@@ -1538,6 +1559,14 @@ public class DBCallableStatement extends DBStatement implements
 		return buffer.toString();
 	}
 
+	protected void recycle() throws SQLException {
+		if (batchPending) {
+			batchPending = false;
+			wrappedStatement.clearBatch();
+		}
+		clearParameters();
+	}
+
 	@Override
 	public void close() throws SQLException {
 		paramMap.clear();
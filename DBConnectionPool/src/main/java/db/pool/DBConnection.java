@@ -25,6 +25,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.log4j.Logger;
 
 /**
@@ -36,8 +39,16 @@ import org.apache.log4j.Logger;
 public class DBConnection implements Connection
 {
 
-    private static final String DB_QUERY_TIMEOUT = "DbQueryTimeout";
-    private long checkouttime = 0;
+    // lease states, transitions are done with compare-and-set so that the pool
+    // can hand out connections without holding any monitor
+    static final int STATE_NOT_IN_USE = 0;
+    static final int STATE_IN_USE = 1;
+    static final int STATE_REMOVED = -1;
+    static final int STATE_RESERVED = -2;
+
+    private volatile long checkouttime = 0;
+    // checkout time of the lease last reported as leaked
+    private final AtomicLong leakReportedCheckout = new AtomicLong(-1);
     
     private DBConnectionPool pool;
     // stores all statements created by this connection in order to close them
@@ -49,42 +60,103 @@ public class DBConnection implements Connection
      */
 
     private Connection conn;
-    private boolean inuse;
-    private long timestamp;
+    private final AtomicInteger state = new AtomicInteger(STATE_NOT_IN_USE);
+    private volatile long timestamp;
+    // time the connection was last returned to the pool, or opened
+    private volatile long releaseTime = System.currentTimeMillis();
+    // time the physical connection was opened, and the random share of the
+    // max lifetime jitter taken off its lifetime
+    private final long creationTime = releaseTime;
+    private final double lifetimeJitter = ThreadLocalRandom.current().nextDouble();
+    // progress of the replacement opened before the connection is retired
+    private static final int RETIRE_NONE = 0;
+    private static final int RETIRE_REPLACING = 1;
+    private static final int RETIRE_REPLACED = 2;
+    private final AtomicInteger retirement = new AtomicInteger(RETIRE_NONE);
     private String name;
     private boolean debugOn = false;
     private PrintStream stream = System.out;
     private PreparedStatement testQuery;
     private String testSQL; 
     private String usingThreadName="";
-    private String usingStackVal = "";
+    private volatile String usingStackVal = "";
+    private volatile Throwable checkoutTrace;
 
     private Logger logger;
     private boolean auditEnabled = false;
+    // auto commit mode of the physical connection, null once the driver
+    // connection was handed out, and whether anything was executed since the
+    // last commit or rollback
+    private Boolean autoCommit;
+    private boolean dirty;
+    // session state as last set on the physical connection, null or UNKNOWN
+    // until it is first read or set. The initial value is kept the first
+    // time a borrower changes it and restored when the connection returns.
+    private static final String UNKNOWN = new String("<unknown>");
+    private static final int UNKNOWN_ISOLATION = -1;
+    private Boolean readOnly;
+    private Boolean initialReadOnly;
+    private int isolation = UNKNOWN_ISOLATION;
+    private int initialIsolation = UNKNOWN_ISOLATION;
+    private String catalog = UNKNOWN;
+    private String initialCatalog = UNKNOWN;
+    private String schema = UNKNOWN;
+    private String initialSchema = UNKNOWN;
+    // idle prepared statements kept across borrows, created on first use
+    private StatementCache statementCache;
 
     public DBConnection(Connection conn, DBConnectionPool pool, String testSQL)
     {
         this.conn = conn;
         this.pool = pool;
-        this.inuse = false;
         this.timestamp = 0;
         this.testSQL = testSQL;
         setTestQuery(testSQL);
         statements = new ArrayList<Statement>();
+        try
+        {
+            autoCommit = conn.getAutoCommit();
+        }
+        catch (SQLException e)
+        {
+            // JDBC default for new connections
+            autoCommit = Boolean.TRUE;
+        }
     }
 
 	protected boolean lease()
 	{
-		if (inuse)
+		if (!state.compareAndSet(STATE_NOT_IN_USE, STATE_IN_USE))
 		{
 			return false;
 		}
-		else
-		{
-			inuse = true;
-			timestamp = System.currentTimeMillis();
-			return true;
-		}
+		pool.leaseChanged(1);
+		timestamp = System.currentTimeMillis();
+		return true;
+	}
+
+	/**
+	 * Takes an idle connection out of circulation so that pool housekeeping can
+	 * work on it while borrowers simply skip it.
+	 */
+	boolean reserve()
+	{
+		return state.compareAndSet(STATE_NOT_IN_USE, STATE_RESERVED);
+	}
+
+	void unreserve()
+	{
+		state.compareAndSet(STATE_RESERVED, STATE_NOT_IN_USE);
+	}
+
+	void markRemoved()
+	{
+		if (state.getAndSet(STATE_REMOVED) == STATE_IN_USE) pool.leaseChanged(-1);
+	}
+
+	int getState()
+	{
+		return state.get();
 	}
 
     private void out(String output)
@@ -92,8 +164,46 @@ public class DBConnection implements Connection
         stream.println("[DBConnection:" + getName() + "]" + output);
     }
 
+    /**
+     * Checks the connection the way the pool is configured to, see
+     * {@link DBConnectionPool#setValidationIsValid(boolean)} and
+     * {@link DBConnectionPool#setValidationTimeout(int)}.
+     */
     public boolean validate()
     {
+        return validate(pool.isValidationIsValid(), pool.getValidationTimeout());
+    }
+
+    /**
+     * Checks that the connection is still usable.
+     * 
+     * @param useIsValid
+     *            ping the database with the JDBC4 <code>isValid</code>
+     *            instead of executing the test SQL. Drivers that don't
+     *            implement it fall back to the test SQL.
+     * @param timeout
+     *            seconds to wait for the database, zero waits forever.
+     */
+    boolean validate(boolean useIsValid, int timeout)
+    {
+        if (useIsValid)
+        {
+            try
+            {
+                boolean valid = conn.isValid(timeout);
+                if (debugOn) out("Connection validation " + (valid ? "passed" : "failed"));
+                return valid;
+            }
+            catch (SQLException e)
+            {
+                if (debugOn) out("Connection validation failed");
+                return false;
+            }
+            catch (AbstractMethodError e)
+            {
+                // pre JDBC4 driver, use the test SQL
+            }
+        }
         try
         {
             if (testSQL == null || testSQL.trim().length() == 0)
@@ -108,7 +218,10 @@ public class DBConnection implements Connection
                 if (debugOn) out("Connection validation failed");
                 return false;
             }
+            if (timeout > 0) testQuery.setQueryTimeout(timeout);
             testQuery.execute();
+            // the test SQL may have started a transaction
+            markDirty();
             if (debugOn) out("Connection validation passed");
         }
         catch (Exception e)
@@ -121,7 +234,7 @@ public class DBConnection implements Connection
 
 	protected boolean inUse()
 	{
-		return inuse;
+		return state.get() == STATE_IN_USE;
 	}
 
     public long getLastUse()
@@ -129,6 +242,48 @@ public class DBConnection implements Connection
         return timestamp;
     }
 
+    long getCreationTime()
+    {
+        return creationTime;
+    }
+
+    double getLifetimeJitter()
+    {
+        return lifetimeJitter;
+    }
+
+    /**
+     * @return <code>false</code> if a replacement is already being opened or
+     *         is open.
+     */
+    boolean startReplacement()
+    {
+        return retirement.compareAndSet(RETIRE_NONE, RETIRE_REPLACING);
+    }
+
+    void replacementFailed()
+    {
+        retirement.compareAndSet(RETIRE_REPLACING, RETIRE_NONE);
+    }
+
+    void replaced()
+    {
+        retirement.set(RETIRE_REPLACED);
+    }
+
+    boolean isReplaced()
+    {
+        return retirement.get() == RETIRE_REPLACED;
+    }
+
+    /**
+     * @return time the connection was last returned to the pool, or opened.
+     */
+    long getReleaseTime()
+    {
+        return releaseTime;
+    }
+
     void setName(String name)
     {
         this.name = name;
@@ -163,15 +318,58 @@ public class DBConnection implements Connection
         //if it is not part of an DBSession
         if (!DBSessionMonitor.contains(this))
         {
-            if (conn.getAutoCommit())
-                conn.commit();
-            else conn.rollback();
-
-            if (debugOn) out("Returning connection to the pool");
-            pool.returnConnection(this);
+            release();
         }
     }
     
+    /**
+     * Ends the transaction, puts back the session state and returns the
+     * connection to the pool. A connection that can't be reset is removed
+     * from the pool instead, so it never keeps its pool slot leased.
+     */
+    private void release() throws SQLException
+    {
+        boolean reset = false;
+        try
+        {
+            endTransaction();
+            restoreSessionState();
+            reset = true;
+        }
+        finally
+        {
+            if (!reset) pool.discardConnection(this);
+        }
+
+        if (debugOn) out("Returning connection to the pool");
+        pool.returnConnection(this);
+    }
+
+    /**
+     * Rolls back the work left uncommitted by the borrower. A connection that
+     * hasn't executed anything since its last commit or rollback, or that is
+     * in auto commit mode, is returned without a round trip.
+     */
+    private void endTransaction() throws SQLException
+    {
+        if (dirty)
+        {
+            if (autoCommit == null) autoCommit = conn.getAutoCommit();
+            if (!autoCommit) conn.rollback();
+            dirty = false;
+        }
+    }
+
+    /**
+     * Called by the statements on every execute, and by the connection when
+     * a statement is created or before any operation that may start a
+     * transaction or hand out the driver connection.
+     */
+    void markDirty()
+    {
+        if (!Boolean.TRUE.equals(autoCommit)) dirty = true;
+    }
+
     void internalClose() throws SQLException
     {
         logger = null;
@@ -183,18 +381,13 @@ public class DBConnection implements Connection
         //if it is not part of an DBSession
         if (!DBSessionMonitor.contains(this))
         {
-            if (conn.getAutoCommit())
-                conn.commit();
-            else conn.rollback();
-
-            if (debugOn) out("Returning connection to the pool");
-            pool.returnConnection(this);
+            release();
         }
     }
 
     protected void expireLease()
     {
-        inuse = false;
+        if (state.compareAndSet(STATE_IN_USE, STATE_NOT_IN_USE)) pool.leaseChanged(-1);
         if (debugOn) out("Expired lease");
     }
 
@@ -205,30 +398,53 @@ public class DBConnection implements Connection
 
     public PreparedStatement prepareStatement(String sql) throws SQLException
     {
-        DBPreparedStatement impl =
-            new DBPreparedStatement(conn.prepareStatement(sql), sql);
+        StatementCache.Key key = statementKey(sql, StatementCache.Key.PREPARED);
+        DBPreparedStatement impl = (DBPreparedStatement) cachedStatement(key);
+        if (impl == null)
+        {
+            impl = new DBPreparedStatement(conn.prepareStatement(sql), sql);
+            impl.setCache(statementCache, key);
+        }
         impl.setQueryTimeout(getQueryTimeout());
-        statements.add(impl);
-        return (PreparedStatement) LogHandler1.newInstance(impl, auditEnabled
-            ? logger : null, this.getPool().getPoolUrl());
+        return (PreparedStatement) wrap(impl);
     }
 
     public CallableStatement prepareCall(String sql) throws SQLException
     {
-        DBCallableStatement impl =
-            new DBCallableStatement(conn.prepareCall(sql),sql);
+        StatementCache.Key key = statementKey(sql, StatementCache.Key.CALLABLE);
+        DBCallableStatement impl = (DBCallableStatement) cachedStatement(key);
+        if (impl == null)
+        {
+            impl = new DBCallableStatement(conn.prepareCall(sql),sql);
+            impl.setCache(statementCache, key);
+        }
         impl.setQueryTimeout(getQueryTimeout());
-        statements.add(impl);
-        return (CallableStatement) LogHandler1.newInstance(impl, auditEnabled
-                ? logger : null, this.getPool().getPoolUrl());       
+        return (CallableStatement) wrap(impl);
     }
 
     public Statement createStatement() throws SQLException
     {
         DBStatement impl = new DBStatement(conn.createStatement());
+        return wrap(impl);
+    }
+
+    /**
+     * Registers a new statement so it is closed with the connection and sets
+     * up its audit log. The statement is handed out as is, unless the
+     * reflective audit proxy is asked for with DBStatementAuditProxy.
+     */
+    private Statement wrap(DBStatement impl)
+    {
         statements.add(impl);
-        return (Statement) LogHandler1.newInstance(impl, auditEnabled
-                ? logger : null, this.getPool().getPoolUrl());
+        impl.setOwner(this);
+        markDirty();
+        Logger auditLogger = auditEnabled ? logger : null;
+        boolean auditProxy = PoolProperties.getConfig().auditProxy;
+        // the statement keeps the bind values for the audit line in both modes
+        impl.setAudit(auditLogger, pool.getPoolUrl(), auditProxy);
+        if (auditProxy)
+            return LogHandler1.newInstance(impl, auditLogger, pool.getPoolUrl());
+        return impl;
     }
 
     public String nativeSQL(String sql) throws SQLException
@@ -239,23 +455,32 @@ public class DBConnection implements Connection
     public void setAutoCommit(boolean autoCommit) throws SQLException
     {
         //Only effective if the connection is not part of an DBSession
-        if (!DBSessionMonitor.contains(this))
+        if (!Boolean.valueOf(autoCommit).equals(this.autoCommit)
+                && !DBSessionMonitor.contains(this))
+        {
             conn.setAutoCommit(autoCommit);
+            // changing the mode commits any pending work
+            this.autoCommit = Boolean.valueOf(autoCommit);
+            dirty = false;
+        }
     }
 
     public boolean getAutoCommit() throws SQLException
     {
-        return conn.getAutoCommit();
+        if (autoCommit == null) autoCommit = Boolean.valueOf(conn.getAutoCommit());
+        return autoCommit;
     }
 
     public void commit() throws SQLException
     {     
         conn.commit();
+        dirty = false;
     }
 
     public void rollback() throws SQLException
     {
         conn.rollback();        
+        dirty = false;
     }
 
     public boolean isClosed() throws SQLException
@@ -265,37 +490,90 @@ public class DBConnection implements Connection
 
     public DatabaseMetaData getMetaData() throws SQLException
     {
+        // the meta data hands out the driver connection
+        markDirty();
         return conn.getMetaData();
     }
 
     public void setReadOnly(boolean readOnly) throws SQLException
     {
+        boolean current = isReadOnly();
+        if (current == readOnly) return;
+        if (initialReadOnly == null) initialReadOnly = Boolean.valueOf(current);
         conn.setReadOnly(readOnly);
+        this.readOnly = Boolean.valueOf(readOnly);
     }
 
     public boolean isReadOnly() throws SQLException
     {
-        return conn.isReadOnly();
+        if (readOnly == null) readOnly = Boolean.valueOf(conn.isReadOnly());
+        return readOnly.booleanValue();
     }
 
     public void setCatalog(String catalog) throws SQLException
     {
+        String current = getCatalog();
+        if (same(current, catalog)) return;
+        if (initialCatalog == UNKNOWN) initialCatalog = current;
         conn.setCatalog(catalog);
+        this.catalog = catalog;
     }
 
     public String getCatalog() throws SQLException
     {
-        return conn.getCatalog();
+        if (catalog == UNKNOWN) catalog = conn.getCatalog();
+        return catalog;
     }
 
     public void setTransactionIsolation(int level) throws SQLException
     {
+        int current = getTransactionIsolation();
+        if (current == level) return;
+        if (initialIsolation == UNKNOWN_ISOLATION) initialIsolation = current;
         conn.setTransactionIsolation(level);
+        isolation = level;
     }
 
     public int getTransactionIsolation() throws SQLException
     {
-        return conn.getTransactionIsolation();
+        if (isolation == UNKNOWN_ISOLATION) isolation = conn.getTransactionIsolation();
+        return isolation;
+    }
+
+    private static boolean same(String a, String b)
+    {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Puts back the session state changed by the borrower, properties that
+     * weren't changed cost no driver call.
+     */
+    private void restoreSessionState() throws SQLException
+    {
+        if (initialReadOnly != null)
+        {
+            setReadOnly(initialReadOnly.booleanValue());
+            initialReadOnly = null;
+        }
+        if (initialIsolation != UNKNOWN_ISOLATION)
+        {
+            int initial = initialIsolation;
+            setTransactionIsolation(initial);
+            initialIsolation = UNKNOWN_ISOLATION;
+        }
+        if (initialCatalog != UNKNOWN)
+        {
+            String initial = initialCatalog;
+            setCatalog(initial);
+            initialCatalog = UNKNOWN;
+        }
+        if (initialSchema != UNKNOWN)
+        {
+            String initial = initialSchema;
+            setSchema(initial);
+            initialSchema = UNKNOWN;
+        }
     }
 
     public SQLWarning getWarnings() throws SQLException
@@ -319,9 +597,7 @@ public class DBConnection implements Connection
     {
         DBStatement impl =
             new DBStatement(conn.createStatement(resultSetType, resultSetConcurrency));
-        statements.add(impl);
-        return LogHandler1.newInstance(impl, auditEnabled
-                ? logger : null, this.getPool().getPoolUrl());
+        return wrap(impl);
     }
 
     /**
@@ -337,9 +613,7 @@ public class DBConnection implements Connection
         DBStatement impl =
             new DBStatement(conn.createStatement(resultSetType, resultSetConcurrency,
                 resultSetHoldability));
-        statements.add(impl);
-        return LogHandler1.newInstance(impl, auditEnabled
-                ? logger : null, this.getPool().getPoolUrl());
+        return wrap(impl);
     }
 
     /*
@@ -397,11 +671,20 @@ public class DBConnection implements Connection
     public CallableStatement prepareCall(String sql, int resultSetType,
         int resultSetConcurrency) throws SQLException
     {
-        DBCallableStatement impl =
-            new DBCallableStatement(conn.prepareCall(sql, resultSetType,
+        StatementCache.Key key = statementKey(sql, StatementCache.Key.CALLABLE,
+            resultSetType, resultSetConcurrency, StatementCache.Key.NONE,
+            StatementCache.Key.NONE, null, null);
+        DBCallableStatement impl = (DBCallableStatement) cachedStatement(key);
+        if (impl == null)
+        {
+            impl = new DBCallableStatement(conn.prepareCall(sql, resultSetType,
                 resultSetConcurrency),sql);
+            impl.setCache(statementCache, key);
+        }
         impl.setQueryTimeout(getQueryTimeout());
         statements.add(impl);
+        impl.setOwner(this);
+        markDirty();
         return impl;
     }
 
@@ -416,11 +699,20 @@ public class DBConnection implements Connection
     public CallableStatement prepareCall(String sql, int resultSetType,
         int resultSetConcurrency, int resultSetHoldability) throws SQLException
     {
-        DBCallableStatement impl =
-            new DBCallableStatement(conn.prepareCall(sql, resultSetType,
+        StatementCache.Key key = statementKey(sql, StatementCache.Key.CALLABLE,
+            resultSetType, resultSetConcurrency, resultSetHoldability,
+            StatementCache.Key.NONE, null, null);
+        DBCallableStatement impl = (DBCallableStatement) cachedStatement(key);
+        if (impl == null)
+        {
+            impl = new DBCallableStatement(conn.prepareCall(sql, resultSetType,
                 resultSetConcurrency, resultSetHoldability),sql);
+            impl.setCache(statementCache, key);
+        }
         impl.setQueryTimeout(getQueryTimeout());
         statements.add(impl);
+        impl.setOwner(this);
+        markDirty();
         return impl;
     }
 
@@ -433,13 +725,18 @@ public class DBConnection implements Connection
     public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys)
         throws SQLException
     {
-        DBPreparedStatement impl =
-            new DBPreparedStatement(conn.prepareStatement(sql,
+        StatementCache.Key key = statementKey(sql, StatementCache.Key.PREPARED,
+            StatementCache.Key.NONE, StatementCache.Key.NONE,
+            StatementCache.Key.NONE, autoGeneratedKeys, null, null);
+        DBPreparedStatement impl = (DBPreparedStatement) cachedStatement(key);
+        if (impl == null)
+        {
+            impl = new DBPreparedStatement(conn.prepareStatement(sql,
                 autoGeneratedKeys), sql);
+            impl.setCache(statementCache, key);
+        }
         impl.setQueryTimeout(getQueryTimeout());
-        statements.add(impl);
-        return (PreparedStatement) LogHandler1.newInstance(impl, auditEnabled
-            ? logger : null, this.getPool().getPoolUrl());
+        return (PreparedStatement) wrap(impl);
     }
 
     /**
@@ -452,18 +749,52 @@ public class DBConnection implements Connection
     public PreparedStatement prepareStatement(String sql, int resultSetType,
         int resultSetConcurrency) throws SQLException
     {
-        DBPreparedStatement impl =
-            new DBPreparedStatement(conn.prepareStatement(sql, resultSetType,
+        StatementCache.Key key = statementKey(sql, StatementCache.Key.PREPARED,
+            resultSetType, resultSetConcurrency, StatementCache.Key.NONE,
+            StatementCache.Key.NONE, null, null);
+        DBPreparedStatement impl = (DBPreparedStatement) cachedStatement(key);
+        if (impl == null)
+        {
+            impl = new DBPreparedStatement(conn.prepareStatement(sql, resultSetType,
                 resultSetConcurrency), sql);
+            impl.setCache(statementCache, key);
+        }
         impl.setQueryTimeout(getQueryTimeout());
-        statements.add(impl);
-        return (PreparedStatement) LogHandler1.newInstance(impl, auditEnabled
-            ? logger : null, this.getPool().getPoolUrl());
+        return (PreparedStatement) wrap(impl);
+    }
+
+    /**
+     * @return the statement cache key, or <code>null</code> when the pool
+     *         doesn't cache statements.
+     */
+    private StatementCache.Key statementKey(String sql, int kind,
+        int resultSetType, int resultSetConcurrency, int resultSetHoldability,
+        int autoGeneratedKeys, int[] columnIndexes, String[] columnNames)
+    {
+        if (pool.getStatementCacheSize() <= 0) return null;
+        if (statementCache == null) statementCache = new StatementCache(pool);
+        return new StatementCache.Key(sql, kind, resultSetType,
+            resultSetConcurrency, resultSetHoldability, autoGeneratedKeys,
+            columnIndexes, columnNames);
+    }
+
+    private StatementCache.Key statementKey(String sql, int kind)
+    {
+        return statementKey(sql, kind, StatementCache.Key.NONE,
+            StatementCache.Key.NONE, StatementCache.Key.NONE,
+            StatementCache.Key.NONE, null, null);
+    }
+
+    private DBStatement cachedStatement(StatementCache.Key key)
+    {
+        if (key == null) return null;
+        DBStatement statement = statementCache.take(key);
+        if (statement != null) statement.reuse();
+        return statement;
     }
 
 	private int getQueryTimeout() {
-		int timeout = PoolProperties.getIntProperty(DB_QUERY_TIMEOUT,30);
-		return timeout;
+		return PoolProperties.getConfig().queryTimeout;
 	}
 
     /**
@@ -477,13 +808,18 @@ public class DBConnection implements Connection
     public PreparedStatement prepareStatement(String sql, int resultSetType,
         int resultSetConcurrency, int resultSetHoldability) throws SQLException
     {
-        DBPreparedStatement impl =
-            new DBPreparedStatement(conn.prepareStatement(sql, resultSetType,
+        StatementCache.Key key = statementKey(sql, StatementCache.Key.PREPARED,
+            resultSetType, resultSetConcurrency, resultSetHoldability,
+            StatementCache.Key.NONE, null, null);
+        DBPreparedStatement impl = (DBPreparedStatement) cachedStatement(key);
+        if (impl == null)
+        {
+            impl = new DBPreparedStatement(conn.prepareStatement(sql, resultSetType,
                 resultSetConcurrency, resultSetHoldability), sql);
+            impl.setCache(statementCache, key);
+        }
         impl.setQueryTimeout(getQueryTimeout());
-        statements.add(impl);
-        return (PreparedStatement) LogHandler1.newInstance(impl, auditEnabled
-            ? logger : null, this.getPool().getPoolUrl());
+        return (PreparedStatement) wrap(impl);
     }
 
     /**
@@ -495,13 +831,18 @@ public class DBConnection implements Connection
     public PreparedStatement prepareStatement(String sql, int[] columnIndexes)
         throws SQLException
     {
-        DBPreparedStatement impl =
-            new DBPreparedStatement(conn.prepareStatement(sql, columnIndexes),
+        StatementCache.Key key = statementKey(sql, StatementCache.Key.PREPARED,
+            StatementCache.Key.NONE, StatementCache.Key.NONE,
+            StatementCache.Key.NONE, StatementCache.Key.NONE, columnIndexes, null);
+        DBPreparedStatement impl = (DBPreparedStatement) cachedStatement(key);
+        if (impl == null)
+        {
+            impl = new DBPreparedStatement(conn.prepareStatement(sql, columnIndexes),
                 sql);
+            impl.setCache(statementCache, key);
+        }
         impl.setQueryTimeout(getQueryTimeout());
-        statements.add(impl);
-        return (PreparedStatement) LogHandler1.newInstance(impl, auditEnabled
-            ? logger : null, this.getPool().getPoolUrl());
+        return (PreparedStatement) wrap(impl);
     }
 
     /**
@@ -513,13 +854,18 @@ public class DBConnection implements Connection
     public PreparedStatement prepareStatement(String sql, String[] columnNames)
         throws SQLException
     {
-        DBPreparedStatement impl =
-            new DBPreparedStatement(conn.prepareStatement(sql, columnNames),
+        StatementCache.Key key = statementKey(sql, StatementCache.Key.PREPARED,
+            StatementCache.Key.NONE, StatementCache.Key.NONE,
+            StatementCache.Key.NONE, StatementCache.Key.NONE, null, columnNames);
+        DBPreparedStatement impl = (DBPreparedStatement) cachedStatement(key);
+        if (impl == null)
+        {
+            impl = new DBPreparedStatement(conn.prepareStatement(sql, columnNames),
                 sql);
+            impl.setCache(statementCache, key);
+        }
         impl.setQueryTimeout(getQueryTimeout());
-        statements.add(impl);
-        return (PreparedStatement) LogHandler1.newInstance(impl, auditEnabled
-            ? logger : null, this.getPool().getPoolUrl());
+        return (PreparedStatement) wrap(impl);
     }
 
     /**
@@ -555,6 +901,7 @@ public class DBConnection implements Connection
      */
     public Savepoint setSavepoint() throws SQLException
     {
+        markDirty();
         return conn.setSavepoint();
     }
 
@@ -565,6 +912,7 @@ public class DBConnection implements Connection
      */
     public Savepoint setSavepoint(String name) throws SQLException
     {
+        markDirty();
         return conn.setSavepoint(name);
     }
 
@@ -602,6 +950,7 @@ public class DBConnection implements Connection
     void hardClose() throws SQLException
     {
         closeStatements();
+        if (statementCache != null) statementCache.clear();
         if (conn != null) conn.close();
     }
 
@@ -643,6 +992,15 @@ public class DBConnection implements Connection
     }
 
 	public <T> T unwrap(Class<T> iface) throws SQLException {
+		// the caller may work on the driver connection directly, the
+		// session state and the auto commit mode are read again on the
+		// next get, and before the rollback on return
+		autoCommit = null;
+		markDirty();
+		readOnly = null;
+		isolation = UNKNOWN_ISOLATION;
+		catalog = UNKNOWN;
+		schema = UNKNOWN;
 		return conn.unwrap(iface);
 	}
 
@@ -706,13 +1064,54 @@ public class DBConnection implements Connection
 		this.usingThreadName = threadName;
 	}
 	
+	/**
+	 * @return the formatted checkout stack trace if it was tracked, otherwise
+	 *         the name of the thread using this connection. The trace is
+	 *         formatted on the first call only.
+	 */
 	public String getUsingStackVal() {
-		return usingStackVal;
+		String stackVal = usingStackVal;
+		if (stackVal == null) {
+			Throwable trace = checkoutTrace;
+			stackVal = trace == null ? usingThreadName : formatTrace(trace);
+			usingStackVal = stackVal;
+		}
+		return stackVal;
 	}
 
 	public void setUsingStackVal(String stackVal) {
+		this.checkoutTrace = null;
 		this.usingStackVal = stackVal;
 	}
+
+	/**
+	 * Keeps an unformatted snapshot of the borrow site, see
+	 * {@link #getUsingStackVal()}.
+	 */
+	void setCheckoutTrace(Throwable trace) {
+		this.checkoutTrace = trace;
+		this.usingStackVal = null;
+	}
+
+	Throwable getCheckoutTrace() {
+		return checkoutTrace;
+	}
+
+	private static String formatTrace(Throwable trace) {
+		StackTraceElement[] traces = trace.getStackTrace();
+		StringBuilder builder = new StringBuilder();
+		builder.append("\n");
+		// the first element is the pool method that captured the trace
+		for(int i=1;i<traces.length;i++){
+			StackTraceElement element = traces[i];
+			String fileName = element.getFileName();
+			String info = null;
+			if(fileName!=null) info = ":"+element.getFileName()+","+element.getLineNumber();
+			builder.append(element.getClassName()+","+element.getMethodName()+(info==null?"":info));
+			builder.append("\n");
+		}
+		return builder.toString();
+	}
 	
 	public void updateCheckoutTime(){
 		checkouttime = System.currentTimeMillis();
@@ -724,6 +1123,16 @@ public class DBConnection implements Connection
 	
 	public void clearCheckoutTime(){
 		checkouttime = -1;
+		releaseTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return <code>false</code> if the lease started at the given checkout
+	 *         time was already reported as leaked.
+	 */
+	boolean markLeakReported(long checkout){
+		long reported = leakReportedCheckout.get();
+		return reported != checkout && leakReportedCheckout.compareAndSet(reported, checkout);
 	}
 
     /**
@@ -735,10 +1144,16 @@ public class DBConnection implements Connection
     }
 
 	public void setSchema(String schema) throws SQLException {	
+		String current = getSchema();
+		if (same(current, schema)) return;
+		if (initialSchema == UNKNOWN) initialSchema = current;
+		conn.setSchema(schema);
+		this.schema = schema;
 	}
 
 	public String getSchema() throws SQLException {
-		return null;
+		if (schema == UNKNOWN) schema = conn.getSchema();
+		return schema;
 	}
 
 	public void abort(Executor executor) throws SQLException {
@@ -754,16 +1169,13 @@ public class DBConnection implements Connection
    
 }
 
+/**
+ * Reflective audit wrapper of the statements, only used when
+ * DBStatementAuditProxy is set. By default the statements audit their own
+ * executes.
+ */
 class LogHandler1 implements InvocationHandler
 {
-    private static final String PROPERTY_NAME_MAXTIME = "DBStatementWarningThreshold";
-    private static final int PROPERTY_DEFAULT_VALUE_MAXTIME = 10000;
-    private static final String ALARM_MESSAGE_MAXTIME1 =
-        "[WARNING] SQL statement execution exceeded the threshold of ";
-    private static final String ALARM_MESSAGE_MAXTIME2 =
-        "(ms), defined by property name " + PROPERTY_NAME_MAXTIME + "\n";
-    private static final String LOG_MESSAGE_ELAPSEDTIME =
-        "\nElapsed time (ms) =";
     private static final String METHOD_NAME_PREFIX = "execute";
     
     private Logger logger;
@@ -806,19 +1218,7 @@ class LogHandler1 implements InvocationHandler
         {
             long elapsedtime = System.currentTimeMillis() - starttime;
             if (logger != null && meth.startsWith(METHOD_NAME_PREFIX))
-            {
-                String logmessage =
-                		Thread.currentThread().getName()+ps.toString() +"  "
-                    + "\n" + this.dataSourceUrl 
-                    + LOG_MESSAGE_ELAPSEDTIME + elapsedtime;
-                long maxtime =
-                    PoolProperties.getIntProperty(PROPERTY_NAME_MAXTIME, PROPERTY_DEFAULT_VALUE_MAXTIME);
-
-                if (elapsedtime > maxtime)
-                    logger.warn(ALARM_MESSAGE_MAXTIME1 + maxtime
-                        + ALARM_MESSAGE_MAXTIME2 + logmessage);
-                logger.info(logmessage);
-            }
+                DBStatement.audit(logger, dataSourceUrl, ps, elapsedtime);
         }
         return obj;
     }    
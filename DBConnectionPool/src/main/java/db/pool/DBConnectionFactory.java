@@ -16,6 +16,7 @@ import org.apache.log4j.Logger;
  */
 public class DBConnectionFactory
 {
+	private static final Logger logger = Logger.getLogger("DBPoolFactory");
 
 	/**
 	 * Retrieves a connection from the specified datasource connection pool
@@ -62,10 +63,9 @@ public class DBConnectionFactory
 		Connection conn;
 		conn = DriverManager.getConnection(dataSourceName);
 		if (conn instanceof DBConnection){
-				Logger logger = Logger.getLogger("DBPoolFactory");
 				DBConnection dbConn = ((DBConnection) conn);
 				dbConn.enableAudit(auditEnabled && logger != null
-						&& "true".equals(PoolProperties.getProperty("EnableAudit")));
+						&& PoolProperties.getConfig().auditEnabled);
 		}
 		return conn;
 	}
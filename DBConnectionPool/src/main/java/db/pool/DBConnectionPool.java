@@ -4,87 +4,196 @@ import java.io.PrintStream;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Properties;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.log4j.Logger;
 
 /**
- * @author Suresh Kannan
- * 
+ * Runs the periodic work of all the pools, the sweeper and the leak
+ * detection, on a few daemon threads shared by every pool instead of a
+ * sleeping thread per pool and task. Each task schedules its next run when
+ * it completes, so an interval change applies from the next run and a slow
+ * run never overlaps the following one. Nothing that waits for the database
+ * runs on these threads, connections are validated and closed on threads of
+ * their pool.
  */
-
-class StaleConnectionManager extends Thread
+class PoolHousekeeper
 {
-    private DBConnectionPool pool;
-    private final long delay = 180000; // check every 3 minutes
-    Pattern pattern;
-    StaleConnectionManager(DBConnectionPool pool)
+    private static final int THREADS = 2;
+    private static final ScheduledThreadPoolExecutor scheduler = createScheduler();
+
+    private static ScheduledThreadPoolExecutor createScheduler()
     {
-        this.pool = pool;
-        setDaemon(true);
-	    pattern = Pattern.compile("(Warning=)(\\d+)(%,Error=)(\\d+)(%)",Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(THREADS,
+            new PoolThreadFactory("DBPool-Housekeeper"));
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
     }
 
-    public void run()
+    static void scheduleSweep(final DBConnectionPool pool)
     {
-        while (true)
+        scheduler.schedule(new Runnable()
         {
-            try
+            public void run()
             {
-                sleep(delay);                
+                try
+                {
+                    sweep(pool);
+                }
+                finally
+                {
+                    scheduleSweep(pool);
+                }
             }
-            catch (InterruptedException e)
-            {}
-            
-            try{
-            	String alarmProperty = PoolProperties.getProperty("DataSourceAlarm");
-            	if(alarmProperty!=null && alarmProperty.trim().length()>0){
-	            	Matcher matcher = pattern.matcher(alarmProperty);
-	            	if(matcher.find())
-	            	{
-	            		pool.warningLevel = Integer.parseInt(matcher.group(2));
-	            		pool.errorLevel = Integer.parseInt(matcher.group(4));
-	            	}
-	            	else{
-	            		DBConnectionPool.logger.warn("Invalid configuration for 'DataSourceAlarm'["+alarmProperty+"]" +
-	            				  ".Valid configuration format is Warning=xx%,Error=xx%");
-	            	}
-            	}            	
-            }catch(Exception ex){
-				DBConnectionPool.logger.error("Error reading DataSourceAlarm",
-						ex);
-            }
-            
-            try{
-            	pool.cleanStaledConnections();
-            }catch(Exception ex){
-				DBConnectionPool.logger.error(
-						"Error cleaning staled connections", ex);
+        }, pool.getSweepInterval(), TimeUnit.MILLISECONDS);
+    }
+
+    static ScheduledFuture<?> schedule(Runnable task, long delay)
+    {
+        return scheduler.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    static void scheduleLeakCheck(final DBConnectionPool pool)
+    {
+        scheduler.schedule(new Runnable()
+        {
+            public void run()
+            {
+                try{
+                	pool.detectLeaks();
+                }catch(Exception ex){
+                	DBConnectionPool.logger.error(
+                			"Error detecting leaked connections", ex);
+                }finally{
+                	scheduleLeakCheck(pool);
+                }
             }
-            
+        }, pool.getLeakCheckInterval(), TimeUnit.MILLISECONDS);
+    }
+
+    private static void sweep(DBConnectionPool pool)
+    {
+        try{
+        	PoolConfig config = PoolProperties.getConfig();
+        	if(config.alarmProperty!=null){
+            	if(!config.isAlarmInvalid())
+            	{
+            		pool.warningLevel = config.alarmWarningLevel;
+            		pool.errorLevel = config.alarmErrorLevel;
+            	}
+            	else{
+            		DBConnectionPool.logger.warn("Invalid configuration for 'DataSourceAlarm'["+config.alarmProperty+"]" +
+            				  ".Valid configuration format is Warning=xx%,Error=xx%");
+            	}
+        	}            	
+        	pool.alarm.setMinInterval(config.alarmInterval);
+        }catch(Exception ex){
+        	DBConnectionPool.logger.error("Error reading DataSourceAlarm",
+        			ex);
+        }
+        
+        try{
+        	pool.cleanStaledConnections();
+        }catch(Exception ex){
+        	DBConnectionPool.logger.error(
+        			"Error cleaning staled connections", ex);
         }
     }
 }
 
+/**
+ * @author Suresh Kannan
+ * 
+ */
 public class DBConnectionPool
 {
-    private static final String ENABLE_DB_CONNECTION_TRACKER = "EnableDBConnectionTracker";
-    private static final String DB_CONNECTION_WAIT_TIME = "DBConnectionWaitTime";
-    private static final int DEFAULT_WAIT_TIME=5000;
+    /** Connections are only validated by the sweeper. */
+    public static final int VALIDATE_NEVER = 0;
+    /** Connections idle longer than the validation idle time are validated on borrow. */
+    public static final int VALIDATE_IDLE = 1;
+    /** Connections are validated on every borrow. */
+    public static final int VALIDATE_ALWAYS = 2;
+    /** Connections are validated when they are returned. */
+    public static final int VALIDATE_ON_RETURN = 3;
+
+    private static final int FILLER_THREADS = 4;
+    private static final int VALIDATOR_THREADS = 4;
+    // weight of the last sweep in the moving average of the demand
+    private static final double DEMAND_WEIGHT = 0.3;
+    // connections are retired up to this share of the max lifetime early, so
+    // connections opened together don't all reconnect at the same time
+    private static final double MAX_LIFETIME_JITTER = 0.1;
 
     private PoolList<Connection> connections;
-    private static int count = 0;
+    private static final AtomicInteger count = new AtomicInteger();
+    // connections in the pool plus the ones being created, a slot is reserved
+    // here before a physical connection is opened so the pool never exceeds
+    // its maximum size without holding the pool monitor while connecting
+    private final AtomicInteger totalConnections = new AtomicInteger();
+    private ThreadPoolExecutor filler;
+    // runs the sweeper validations in parallel
+    private ThreadPoolExecutor validator;
+    // closes removed connections, a thread per close so a close blocked on
+    // an unreachable database never holds up the others
+    private ExecutorService closer;
+    private volatile SQLException lastCreateFailure;
+    // circuit breaker, opened after breakerThreshold consecutive connect
+    // failures. While open borrowers don't trigger connects and fail fast
+    // when nothing can be returned to them, a single prober reconnects
+    private final AtomicInteger connectFailures = new AtomicInteger();
+    private final AtomicBoolean breakerOpen = new AtomicBoolean();
+    // bumped whenever the breaker opens or closes, a probe of an older
+    // generation belongs to a past outage and stops
+    private final AtomicInteger probeGeneration = new AtomicInteger();
+    private volatile int breakerThreshold = PoolConfig.DEFAULT_BREAKER_THRESHOLD;
+    private volatile long breakerRetryInterval = PoolConfig.DEFAULT_BREAKER_RETRY_INTERVAL;
+    private volatile long breakerMaxRetryInterval = PoolConfig.DEFAULT_BREAKER_MAX_RETRY_INTERVAL;
+    // idle connections kept open above the in use count, up to the pool size
+    private volatile int spareCount = 0;
+    private final AtomicBoolean fillRequested = new AtomicBoolean();
     private String url;
     private Properties props;
     private boolean autoCommit = false;
     
-    final private long timeout = 300000; // check on connections that haven't
-    // been used in last 5 minutes
-    private StaleConnectionManager staleManager;
+    // idle connections above the expected demand are closed after this many
+    // milliseconds, a few at each sweep
+    private volatile long idleTimeout = PoolConfig.DEFAULT_IDLE_TIMEOUT;
+    private volatile long sweepInterval = PoolConfig.DEFAULT_SWEEP_INTERVAL;
+    // connections older than this many milliseconds are closed and replaced,
+    // zero keeps them open as long as they are valid
+    private volatile long maxLifetime = 0;
+    // highest number of connections in use since the last sweep, and its
+    // moving average over the sweeps
+    private final AtomicInteger peakInUse = new AtomicInteger();
+    private volatile double demandAverage;
+    private boolean leakCheckScheduled;
+    // connections held longer than this many milliseconds are reported as
+    // leaked, zero disables the leak detection
+    private volatile long leakThreshold = 0;
+    private volatile long leakCheckInterval = PoolConfig.DEFAULT_LEAK_CHECK_INTERVAL;
+    private volatile boolean leakReclaim = false;
     private int poolsize = 10;
     private PrintStream stream = System.out;
     private int minimumSize = 0;
@@ -93,7 +202,31 @@ public class DBConnectionPool
     private static boolean debugOn = false;
     int warningLevel = 60;   //default value
     int errorLevel = 80;	 //default value
+    PoolAlarm alarm;
     private String poolUrl;
+    // when true every borrow serializes on the pool monitor (pre lock-free behaviour)
+    private volatile boolean legacyMode = false;
+    private final AtomicInteger waitingCount = new AtomicInteger();
+    // connections currently leased, maintained on every lease state change so
+    // statistics and alarms never have to scan the pool
+    private final AtomicInteger activeCount = new AtomicInteger();
+    // borrowers waiting for a connection, oldest first. Returned connections
+    // are handed to them directly instead of going back to the shared list
+    private final ConcurrentLinkedQueue<ConnectionWaiter> waiters = new ConcurrentLinkedQueue<ConnectionWaiter>();
+    // last connection returned by each thread, reclaimed by the same thread
+    // with a single compare-and-set without touching the shared list
+    private final ThreadLocal<DBConnection> threadLocalConnection = new ThreadLocal<DBConnection>();
+    private final LongAdder threadLocalHits = new LongAdder();
+    private final LongAdder sharedListScans = new LongAdder();
+    // idle prepared statements kept by each connection, zero disables the cache
+    private volatile int statementCacheSize;
+    private final LongAdder statementCacheHits = new LongAdder();
+    private final LongAdder statementCacheMisses = new LongAdder();
+    private final LongAdder statementCacheEvictions = new LongAdder();
+    private volatile int validation = VALIDATE_NEVER;
+    private volatile long validationIdleTime = PoolConfig.DEFAULT_VALIDATION_IDLE_TIME;
+    private volatile int validationTimeout = PoolConfig.DEFAULT_VALIDATION_TIMEOUT;
+    private volatile boolean validationIsValid = false;
     
     static{
         logger = Logger.getLogger("DBPool");
@@ -115,338 +248,1460 @@ public class DBConnectionPool
         this.poolUrl = poolUrl;
         if(poolUrl==null)poolUrl = url;
         connections = new PoolList<Connection>();
+        PoolConfig config = PoolProperties.getConfig();
+        legacyMode = config.legacyMode;
+        spareCount = config.spareCount;
+        statementCacheSize = config.statementCacheSize;
+        idleTimeout = config.idleTimeout;
+        sweepInterval = config.sweepInterval;
+        maxLifetime = config.maxLifetime;
+        breakerThreshold = config.breakerThreshold;
+        breakerRetryInterval = config.breakerRetryInterval;
+        breakerMaxRetryInterval = config.breakerMaxRetryInterval;
+        validation = config.validation;
+        validationIdleTime = config.validationIdleTime;
+        validationTimeout = config.validationTimeout;
+        validationIsValid = config.validationIsValid;
+        alarm = new PoolAlarm(this.poolUrl, logger, config.alarmInterval);
+        int fillerThreads = Math.max(1, Math.min(FILLER_THREADS, maxSize));
+        filler = new ThreadPoolExecutor(fillerThreads, fillerThreads, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new PoolThreadFactory(this.poolUrl+"-Filler"));
+        filler.allowCoreThreadTimeOut(true);
+        int validatorThreads = Math.max(1, Math.min(VALIDATOR_THREADS, maxSize));
+        validator = new ThreadPoolExecutor(validatorThreads, validatorThreads, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new PoolThreadFactory(this.poolUrl+"-Validator"));
+        validator.allowCoreThreadTimeOut(true);
+        closer = Executors.newCachedThreadPool(new PoolThreadFactory(this.poolUrl+"-Closer"));
         StringBuilder builder = new StringBuilder();
         builder.append("Creating connection pool for URL["+poolUrl+"]");
         try
         {
-            for (int i = 0; i < minSize; i++)
+            // minimum connections are opened in parallel by the filler threads
+            List<Future<DBConnection>> created = new ArrayList<Future<DBConnection>>(minSize);
+            for (int i = 0; i < minSize && reserveSlot(); i++)
+            {
+                created.add(filler.submit(new Callable<DBConnection>()
+                {
+                    public DBConnection call() throws SQLException
+                    {
+                        return fillSlot();
+                    }
+                }));
+            }
+            for (Future<DBConnection> future : created)
+            {
+                try
+                {
+                    future.get();
+                }
+                catch (ExecutionException e)
+                {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Error) throw (Error) cause;
+                    throw (Exception) cause;
+                }
+            }
+            String _concount = minSize>1?" connections" :" connection";
+            builder.append("Created "+minSize+_concount+" based on 'minSize' configuration");
+            logger.info(builder.toString());
+        }
+        catch (Exception ex)
+        {
+            ex.printStackTrace();
+            System.out.println("Minimum connections in pool cannot be created");
+            logger.fatal("Exception occurred while initializing connection for pool "+poolUrl,ex);
+        }
+        requestFill();
+        leakCheckInterval = config.leakCheckInterval;
+        leakReclaim = config.leakReclaim;
+        setLeakThreshold(config.leakThreshold);
+        PoolHousekeeper.scheduleSweep(this);
+    }
+
+    /**
+     * Closes some of the connections idle for longer than the idle timeout
+     * and validates the others. Only the connections above the expected
+     * demand are closed, and only half of them at each sweep, so the pool
+     * shrinks gradually instead of reconnecting on the next burst.
+     * The pool monitor is not held, connections being checked are reserved
+     * so borrowers skip them and go on with the rest of the pool. The
+     * validations run in background, the sweep doesn't wait for them.
+     */
+    public void cleanStaledConnections()
+    {
+        out("Starting clean staled connections");
+        long stale = System.currentTimeMillis() - idleTimeout;
+        out("Stale value is " + stale);
+        long now = System.currentTimeMillis();
+        int keep = updateDemand();
+        int shrinkLimit = Math.max(1, (connections.size() - keep) / 2);
+        int removed = 0;
+
+        List<DBConnection> reserved = new ArrayList<DBConnection>();
+        // the pool list iterates over a snapshot, so removing an entry
+        // won't screw up the iterator
+        Iterator<Connection> itt = connections.iterator();
+        while (itt.hasNext())
+        {
+            DBConnection conn = (DBConnection) itt.next();
+            out("Connection " + conn.getName() + " last use "
+                    + conn.getLastUse());
+			// a connection can't have state changed while it is being evaluated
+			// to be removed from the pool, that is why it is reserved here.
+			// Borrowers skip reserved connections instead of blocking on them
+			if (!conn.reserve()) continue;
+			if (stale > conn.getReleaseTime() && removed < shrinkLimit
+					&& connections.size() > keep)
+			{
+				// closed in background, the housekeeping threads are shared
+				// by all the pools
+				removeConnectionAsync(conn);
+				removed++;
+				continue;
+			}
+			if (isPastLifetime(conn, now) && retireConnection(conn)) continue;
+			reserved.add(conn);
+        }
+        validateReserved(reserved);
+        restoreMinimumSize();
+        out("Pool clean up done. ["+getInUse()+"] connections are in use out of ["+connections.size()+"] in pool."+poolUrl);
+    }
+
+    /**
+     * Folds the peak number of connections in use since the last sweep into
+     * the moving average of the demand.
+     * 
+     * @return number of connections the sweeper keeps open, the average
+     *         demand plus the spare count but never below the minimum size.
+     */
+    private int updateDemand()
+    {
+        int peak = peakInUse.getAndSet(activeCount.get());
+        double average = DEMAND_WEIGHT * peak + (1 - DEMAND_WEIGHT) * demandAverage;
+        demandAverage = average;
+        return Math.min(poolsize, Math.max(minimumSize, (int) Math.ceil(average) + spareCount));
+    }
+
+    /**
+     * Validates reserved connections in parallel on the validator threads,
+     * without waiting for them. Valid connections go back to the pool, the
+     * others are removed and closed in background. Each validation gets the
+     * validation timeout from the moment it starts, a connection still being
+     * validated after that is removed too. Validations still queued once the
+     * whole batch has had the time to run are given up and their connections
+     * go back untested. With a zero timeout validations never time out.
+     */
+    private void validateReserved(List<DBConnection> reserved)
+    {
+        if (reserved.isEmpty()) return;
+        boolean useIsValid = validationIsValid;
+        int timeout = validationTimeout;
+        final List<ConnectionValidation> validations = new ArrayList<ConnectionValidation>(reserved.size());
+        for (DBConnection conn : reserved)
+        {
+            ConnectionValidation validation = new ConnectionValidation(conn, useIsValid, timeout);
+            validations.add(validation);
+            validator.execute(validation);
+        }
+        if (timeout <= 0) return;
+        // time the batch needs if every validation takes its full timeout
+        int threads = validator.getMaximumPoolSize();
+        long batchTime = TimeUnit.SECONDS.toMillis(timeout)
+            * ((reserved.size() + threads - 1) / threads + 1);
+        PoolHousekeeper.schedule(new Runnable()
+        {
+            public void run()
+            {
+                for (ConnectionValidation validation : validations)
+                {
+                    validation.giveUp();
+                }
+            }
+        }, batchTime);
+    }
+
+    /**
+     * Validation of one reserved connection. The validator thread, the
+     * timeout and the give up of the batch race to settle it, only the first
+     * one puts the connection back or removes it.
+     */
+    private class ConnectionValidation implements Runnable
+    {
+        private static final int QUEUED = 0;
+        private static final int RUNNING = 1;
+        private static final int SETTLED = 2;
+        private final DBConnection conn;
+        private final boolean useIsValid;
+        private final int timeout;
+        private final AtomicInteger state = new AtomicInteger(QUEUED);
+
+        ConnectionValidation(DBConnection conn, boolean useIsValid, int timeout)
+        {
+            this.conn = conn;
+            this.useIsValid = useIsValid;
+            this.timeout = timeout;
+        }
+
+        public void run()
+        {
+            if (!state.compareAndSet(QUEUED, RUNNING)) return;
+            ScheduledFuture<?> expiry = null;
+            if (timeout > 0)
+            {
+                expiry = PoolHousekeeper.schedule(new Runnable()
+                {
+                    public void run()
+                    {
+                        expire();
+                    }
+                }, TimeUnit.SECONDS.toMillis(timeout));
+            }
+            boolean valid = false;
+            try
+            {
+                valid = conn.validate(useIsValid, timeout);
+            }
+            finally
+            {
+                if (expiry != null) expiry.cancel(false);
+                if (state.compareAndSet(RUNNING, SETTLED))
+                {
+                    if (valid) releaseReserved(conn);
+                    else removeInvalid();
+                }
+            }
+        }
+
+        /**
+         * Puts the connection back untested if its validation hasn't started.
+         */
+        void giveUp()
+        {
+            if (state.compareAndSet(QUEUED, SETTLED)) releaseReserved(conn);
+        }
+
+        /**
+         * Removes the connection if its validation is still running.
+         */
+        private void expire()
+        {
+            if (!state.compareAndSet(RUNNING, SETTLED)) return;
+            logger.warn("Validation of connection [" + conn.getName() + "] of pool ["
+                + poolUrl + "] timed out, the connection is removed from the pool");
+            // closing the physical connection also releases the validator
+            // thread, a blocked JDBC call can't be interrupted
+            removeInvalid();
+        }
+
+        private void removeInvalid()
+        {
+            removeConnectionAsync(conn);
+            if (!waiters.isEmpty()) addConnectionAsync();
+            restoreMinimumSize();
+        }
+    }
+
+    /**
+     * Puts a connection reserved by the housekeeping back in the pool. A
+     * borrower that queued while it was reserved gets it handed over, as
+     * with a returned connection.
+     */
+    private void releaseReserved(DBConnection conn)
+    {
+        conn.unreserve();
+        if (!waiters.isEmpty() && conn.lease()) releaseLease(conn);
+        notifyLegacyWaiter();
+    }
+
+    /**
+     * Takes a connection out of the pool right away and closes it on a
+     * closer thread, so the caller never waits for the database.
+     */
+    private void removeConnectionAsync(final DBConnection conn)
+    {
+        out("removing connection ["+conn.getName()+"] from the pool");
+        conn.markRemoved();
+        if (connections.remove(conn)) totalConnections.decrementAndGet();
+        // the freed slot lets a legacy borrower open a connection
+        notifyLegacyWaiter();
+        closer.execute(new Runnable()
+        {
+            public void run()
+            {
+                try{
+                	conn.hardClose();
+                }catch(SQLException ex){
+                	out("exception while hardclosing connection:"+ex.getMessage());
+                }
+            }
+        });
+    }
+
+    public synchronized void closeConnections()
+    {
+        Iterator<Connection> itt = connections.iterator();
+        while (itt.hasNext())
+        {
+            DBConnection conn = (DBConnection) itt.next();
+            removeConnection(conn);
+        }
+    }
+
+    private void removeConnection(DBConnection conn)
+    {        
+        out("removing connection ["+conn.getName()+"] from the pool");
+        conn.markRemoved();
+        try{
+        	conn.hardClose();
+        }catch(SQLException ex){
+        	out("exception while hardclosing connection:"+ex.getMessage());
+        }
+        if (connections.remove(conn)) totalConnections.decrementAndGet();
+    }
+
+    /**
+     * Asks the filler to open connections until the pool is back to its
+     * minimum size. Connections are opened outside of any pool lock.
+     */
+    private void restoreMinimumSize()
+    {
+        while (totalConnections.get() < minimumSize && addConnectionAsync())
+        {
+            out("Restoring minimum number of connections in pool "+poolUrl);
+        }
+    }
+
+    /**
+     * Reserves a slot for a new connection if the pool has not reached its
+     * maximum size. The slot must be released by removing the connection or
+     * when the connection can't be opened.
+     */
+    private boolean reserveSlot()
+    {
+        return reserveSlot(poolsize);
+    }
+
+    private boolean reserveSlot(int limit)
+    {
+        while (true)
+        {
+            int total = totalConnections.get();
+            if (total >= limit) return false;
+            if (totalConnections.compareAndSet(total, total + 1)) return true;
+        }
+    }
+
+    /**
+     * Opens a new connection on the filler thread and publishes it to the
+     * longest waiting borrower or to the pool. Threads that find an idle
+     * connection are never blocked by this connect.
+     * 
+     * @return <code>false</code> if the pool is already at its maximum size.
+     */
+    private boolean addConnectionAsync()
+    {
+        if (breakerOpen.get() || !reserveSlot()) return false;
+        filler.execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    fillSlot();
+                }
+                catch (SQLException e)
+                {
+                    logger.warn("Unable to create a new connection for pool "+poolUrl + " due to an exception",e);
+                    out("Unable to create a new connection for pool "+poolUrl + " due to an exception");
+                    failWaiter(e);
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Fails the longest waiting borrower with the error of a connect that
+     * couldn't open the connection it waits for, instead of leaving it
+     * parked until its wait time runs out.
+     */
+    private void failWaiter(SQLException e)
+    {
+        SQLException failure = new SQLException("No connection available for pool "
+            + poolUrl + ": " + e.getMessage(), e.getSQLState(), e);
+        ConnectionWaiter waiter;
+        while ((waiter = waiters.poll()) != null)
+        {
+            if (waiter.fail(failure)) return;
+        }
+    }
+
+    /**
+     * Opens a connection in a reserved slot and publishes it.
+     */
+    private DBConnection fillSlot() throws SQLException
+    {
+        DBConnection conn = createConnection();
+        conn.setUsingThreadName("");
+        conn.setUsingStackVal("");
+        conn.clearCheckoutTime();
+        releaseLease(conn);
+        return conn;
+    }
+
+    /**
+     * Asks the filler to top up the spare idle connections. Only one request
+     * is pending at any time, so calling this on every borrow is cheap.
+     */
+    private void requestFill()
+    {
+        if (spareCount <= 0 || totalConnections.get() >= getFillTarget()) return;
+        if (!fillRequested.compareAndSet(false, true)) return;
+        filler.execute(new Runnable()
+        {
+            public void run()
+            {
+                fillRequested.set(false);
+                fillPool();
+            }
+        });
+    }
+
+    /**
+     * Opens connections until <code>spareCount</code> connections are idle or
+     * being opened above the in use count. Once the usage reaches the warning
+     * level the spare count is doubled so the pool grows ahead of the demand.
+     */
+    private void fillPool()
+    {
+        int target = getFillTarget();
+        while (totalConnections.get() < target && addConnectionAsync())
+        {
+            out("Adding a spare connection to pool "+poolUrl);
+        }
+    }
+
+    private int getFillTarget()
+    {
+        int inUse = getInUse();
+        int spare = spareCount;
+        if ((((double)inUse/poolsize)*100)>=warningLevel) spare = spare * 2;
+        return Math.min(poolsize, Math.max(minimumSize, inUse + spare));
+    }
+
+    /**
+     * Sets the number of idle connections the filler keeps open above the
+     * number of connections in use, up to the maximum pool size. Can also be
+     * set with the property DBConnectionSpareCount. Zero disables it.
+     */
+    public void setSpareCount(int spareCount)
+    {
+        this.spareCount = spareCount;
+        requestFill();
+    }
+
+    public int getSpareCount()
+    {
+        return spareCount;
+    }
+
+    /**
+     * Sets when connections are validated besides the sweeper run, one of
+     * VALIDATE_NEVER, VALIDATE_IDLE, VALIDATE_ALWAYS or VALIDATE_ON_RETURN.
+     * Can also be set with the property DBConnectionValidation=never, idle,
+     * always or return.
+     */
+    public void setValidation(int validation)
+    {
+        this.validation = validation;
+    }
+
+    public int getValidation()
+    {
+        return validation;
+    }
+
+    /**
+     * Sets how long, in milliseconds, a connection can stay idle before it is
+     * validated on borrow with VALIDATE_IDLE. Connections used more recently
+     * are handed out without a round trip. Can also be set with the property
+     * DBConnectionValidationIdleTime.
+     */
+    public void setValidationIdleTime(long validationIdleTime)
+    {
+        this.validationIdleTime = validationIdleTime;
+    }
+
+    public long getValidationIdleTime()
+    {
+        return validationIdleTime;
+    }
+
+    /**
+     * Sets the seconds a validation waits for the database, counted from the
+     * start of each validation. Zero waits forever, on borrow, on return and
+     * in the sweeper. Can also be set with the property
+     * DBConnectionValidationTimeout.
+     */
+    public void setValidationTimeout(int validationTimeout)
+    {
+        this.validationTimeout = validationTimeout;
+    }
+
+    public int getValidationTimeout()
+    {
+        return validationTimeout;
+    }
+
+    /**
+     * When <code>true</code> connections are validated with the JDBC4
+     * <code>Connection.isValid</code> ping instead of the test SQL. Can also
+     * be set with the property DBConnectionValidationIsValid.
+     */
+    public void setValidationIsValid(boolean validationIsValid)
+    {
+        this.validationIsValid = validationIsValid;
+    }
+
+    public boolean isValidationIsValid()
+    {
+        return validationIsValid;
+    }
+
+    /**
+     * Validates a connection just leased by a borrower if the validation
+     * policy asks for it.
+     */
+    private boolean validateOnBorrow(DBConnection conn)
+    {
+        int mode = validation;
+        if (mode == VALIDATE_IDLE)
+        {
+            if (System.currentTimeMillis() - conn.getReleaseTime() < validationIdleTime) return true;
+        }
+        else if (mode != VALIDATE_ALWAYS)
+        {
+            return true;
+        }
+        if (conn.validate(validationIsValid, validationTimeout)) return true;
+        logger.warn("Connection [" + conn.getName() + "] of pool [" + poolUrl
+            + "] failed validation on borrow and is removed from the pool");
+        return false;
+    }
+
+    void leaseChanged(int delta)
+    {
+        int active = activeCount.addAndGet(delta);
+        int peak;
+        while (active > (peak = peakInUse.get()) && !peakInUse.compareAndSet(peak, active));
+    }
+
+    /**
+     * Sets how long, in milliseconds, a connection can stay idle before the
+     * sweeper may close it. Can also be set with the property
+     * DBConnectionIdleTimeout.
+     */
+    public void setIdleTimeout(long idleTimeout)
+    {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public long getIdleTimeout()
+    {
+        return idleTimeout;
+    }
+
+    /**
+     * Sets the milliseconds between two sweeper runs, applied from the next
+     * run. Can also be set with the property DBConnectionSweepInterval.
+     */
+    public void setSweepInterval(long sweepInterval)
+    {
+        this.sweepInterval = sweepInterval;
+    }
+
+    public long getSweepInterval()
+    {
+        return sweepInterval;
+    }
+
+    /**
+     * Sets how long, in milliseconds, a connection is used before it is
+     * closed and replaced. Each connection is retired at a random time up to
+     * 10% before its max lifetime. Can also be set with the property
+     * DBConnectionMaxLifetime. Zero disables it.
+     */
+    public void setMaxLifetime(long maxLifetime)
+    {
+        this.maxLifetime = maxLifetime;
+    }
+
+    public long getMaxLifetime()
+    {
+        return maxLifetime;
+    }
+
+    private boolean isPastLifetime(DBConnection conn, long now)
+    {
+        long lifetime = maxLifetime;
+        if (lifetime <= 0) return false;
+        long jitter = (long) (lifetime * MAX_LIFETIME_JITTER * conn.getLifetimeJitter());
+        return now - conn.getCreationTime() >= lifetime - jitter;
+    }
+
+    /**
+     * Retires a connection past its max lifetime once its replacement is
+     * open, so borrowers never wait for the reconnect. Until then the
+     * connection stays in use while the filler opens the replacement, the
+     * pool can go one connection above its maximum size meanwhile. The
+     * connection must be leased or reserved by the caller.
+     * 
+     * @return <code>true</code> if the connection was removed from the pool.
+     */
+    private boolean retireConnection(final DBConnection conn)
+    {
+        if (conn.isReplaced())
+        {
+            out("Retiring connection [" + conn.getName() + "] of pool [" + poolUrl
+                + "] after its max lifetime");
+            removeConnectionAsync(conn);
+            return true;
+        }
+        if (breakerOpen.get() || !conn.startReplacement()) return false;
+        if (!reserveSlot(poolsize + 1))
+        {
+            conn.replacementFailed();
+            return false;
+        }
+        filler.execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    fillSlot();
+                }
+                catch (SQLException e)
+                {
+                    // retried on the next return or sweep
+                    conn.replacementFailed();
+                    logger.warn("Unable to replace connection [" + conn.getName()
+                        + "] of pool " + poolUrl + " past its max lifetime", e);
+                    return;
+                }
+                conn.replaced();
+                // an idle connection is retired now, a leased one when it
+                // is returned
+                if (conn.reserve()) retireConnection(conn);
+            }
+        });
+        return false;
+    }
+
+    /**
+     * Opens the circuit breaker once the connect failures in a row reach the
+     * breaker threshold, and starts the prober.
+     */
+    private void connectFailed()
+    {
+        int threshold = breakerThreshold;
+        if (connectFailures.incrementAndGet() < threshold || threshold <= 0
+                || !breakerOpen.compareAndSet(false, true)) return;
+        logger.error("Database for pool [" + poolUrl + "] is unreachable after "
+            + threshold + " connect failures in a row, circuit breaker opened", lastCreateFailure);
+        scheduleProbe(breakerRetryInterval, probeGeneration.incrementAndGet());
+    }
+
+    /**
+     * Closes the circuit breaker and retires the probe of the outage.
+     * 
+     * @return true if the breaker was open.
+     */
+    private boolean closeBreaker()
+    {
+        if (!breakerOpen.compareAndSet(true, false)) return false;
+        probeGeneration.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Tries to open a connection after the given delay while the breaker is
+     * open, doubling the delay after each failure up to the max retry
+     * interval. The connect closes the breaker when it succeeds. It runs on
+     * a filler thread so a slow connect doesn't hold up the housekeeping.
+     * The probe stops once the breaker was closed or reopened since it was
+     * scheduled, so a single probe chain runs per outage.
+     */
+    private void scheduleProbe(final long delay, final int generation)
+    {
+        final Runnable probe = new Runnable()
+        {
+            public void run()
+            {
+                if (probeGeneration.get() != generation) return;
+                if (!reserveSlot())
+                {
+                    // nothing to open, the pool is full
+                    closeBreaker();
+                    return;
+                }
+                try
+                {
+                    fillSlot();
+                }
+                catch (SQLException e)
+                {
+                    out("Probe connect failed for pool "+poolUrl+": "+e.getMessage());
+                    if (probeGeneration.get() == generation)
+                        scheduleProbe(Math.min(delay * 2, breakerMaxRetryInterval), generation);
+                    return;
+                }
+                restoreMinimumSize();
+                requestFill();
+            }
+        };
+        PoolHousekeeper.schedule(new Runnable()
+        {
+            public void run()
+            {
+                if (probeGeneration.get() == generation) filler.execute(probe);
+            }
+        }, delay);
+    }
+
+    private SQLException breakerOpenException()
+    {
+        return new SQLException("Database for pool [" + poolUrl + "] is unreachable, failing fast after "
+            + connectFailures.get() + " connect failures in a row while it is retried in background",
+            "08001", lastCreateFailure);
+    }
+
+    /**
+     * Sets the number of connect failures in a row that opens the circuit
+     * breaker. While it is open borrowers that find no idle connection fail
+     * right away, or wait for a returned connection if some are in use, and
+     * only a background prober tries to connect. Can also be set with the
+     * property DBConnectionBreakerThreshold. Defaults to 5, zero disables it.
+     */
+    public void setBreakerThreshold(int breakerThreshold)
+    {
+        this.breakerThreshold = breakerThreshold;
+    }
+
+    public int getBreakerThreshold()
+    {
+        return breakerThreshold;
+    }
+
+    /**
+     * Sets the delay in milliseconds before the first reconnect attempt once
+     * the breaker is open, doubled after each failed attempt up to the max
+     * retry interval. Can also be set with the properties
+     * DBConnectionBreakerRetryInterval and DBConnectionBreakerMaxRetryInterval.
+     */
+    public void setBreakerRetryInterval(long breakerRetryInterval)
+    {
+        this.breakerRetryInterval = breakerRetryInterval;
+    }
+
+    public long getBreakerRetryInterval()
+    {
+        return breakerRetryInterval;
+    }
+
+    public void setBreakerMaxRetryInterval(long breakerMaxRetryInterval)
+    {
+        this.breakerMaxRetryInterval = breakerMaxRetryInterval;
+    }
+
+    public long getBreakerMaxRetryInterval()
+    {
+        return breakerMaxRetryInterval;
+    }
+
+    public boolean isBreakerOpen()
+    {
+        return breakerOpen.get();
+    }
+
+    /**
+     * @return moving average of the peak number of connections in use
+     *         between two sweeps.
+     */
+    public double getDemandAverage()
+    {
+        return demandAverage;
+    }
+
+    public int getInUse()
+    {
+        return activeCount.get();
+    }
+
+    /**
+     * @return number of connections in the pool that are not leased.
+     */
+    public int getIdleCount()
+    {
+        return Math.max(0, connections.size() - activeCount.get());
+    }
+
+    /**
+     * @return number of connections being opened and not yet in the pool.
+     */
+    public int getPendingCount()
+    {
+        return Math.max(0, totalConnections.get() - connections.size());
+    }
+
+    /**
+     * @return number of borrowers waiting for a connection.
+     */
+    public int getWaitingCount()
+    {
+        return waitingCount.get();
+    }
+    
+    /**
+     * Lists the threads holding a connection. Checkout stack traces, when
+     * tracked, are only rendered here and only for connections held at least
+     * DBConnectionTrackerMinHoldTime milliseconds.
+     */
+    public String getUserThreadList(){
+    	StringBuilder builder = new StringBuilder();
+    	long minHoldTime = PoolProperties.getConfig().trackerMinHoldTime;
+    	Iterator<Connection> itt = connections.iterator();
+        while (itt.hasNext())
+        {
+            DBConnection conn = (DBConnection) itt.next();
+            if (conn.inUse())
+            {
+            	if(builder.length()>0)builder.append(",");
+            	long time = System.currentTimeMillis()-conn.getCheckoutTime();
+                builder.append("Checked out for["+(time)+"] "+conn.getUsingThreadName());
+                if (time >= minHoldTime) builder.append(conn.getUsingStackVal());
+            }
+        }
+        builder.append("**********************************\n");
+        return builder.toString();
+    }
+
+    public int getMax()
+    {
+        return poolsize;
+    }
+
+    @Deprecated
+    /**
+     * Replaced by getMin() method. Initial size is no longer supported.
+     */
+    public int getInitial()
+    {
+        return minimumSize;
+    }
+    
+    public int getMin()
+    {
+        return minimumSize;
+    }
+    
+    public int getCurrentCount(){
+    	return connections.size();
+    }
+    
+    public int getMaxEver(){
+    	return connections.getMaxEver();
+    }
+
+    /**
+     * @return number of borrows served by the connection last returned by the
+     *         borrowing thread.
+     */
+    public long getThreadLocalHits(){
+    	return threadLocalHits.sum();
+    }
+
+    /**
+     * @return number of borrows that had to scan the shared connection list.
+     */
+    public long getSharedListScans(){
+    	return sharedListScans.sum();
+    }
+
+    /**
+     * Sets the number of idle prepared statements each connection keeps open
+     * for reuse. Can also be set with the property DBStatementCacheSize. Zero
+     * disables the statement cache.
+     */
+    public void setStatementCacheSize(int statementCacheSize){
+    	this.statementCacheSize = statementCacheSize;
+    }
+
+    public int getStatementCacheSize(){
+    	return statementCacheSize;
+    }
+
+    /**
+     * @return number of prepares served from the statement cache.
+     */
+    public long getStatementCacheHits(){
+    	return statementCacheHits.sum();
+    }
+
+    /**
+     * @return number of prepares that had to go to the driver while the
+     *         statement cache was on.
+     */
+    public long getStatementCacheMisses(){
+    	return statementCacheMisses.sum();
+    }
+
+    /**
+     * @return number of cached statements closed to stay within the cache size.
+     */
+    public long getStatementCacheEvictions(){
+    	return statementCacheEvictions.sum();
+    }
+
+    void statementCacheHit(){
+    	statementCacheHits.increment();
+    }
+
+    void statementCacheMiss(){
+    	statementCacheMisses.increment();
+    }
+
+    void statementCacheEviction(){
+    	statementCacheEvictions.increment();
+    }
+
+    public static void setDebugOn()
+    {
+        debugOn = true;
+    }
+
+    public static void setDebugOff()
+    {
+        debugOn = false;
+    }
+
+    public String getUrl()
+    {
+        return url;
+    }
+
+    public String getUser()
+    {
+        return props != null ? props.getProperty("user") : null;
+    }
+
+    private void printStat()
+    {
+        if (debugOn)
+        {
+            int inUse = getInUse();
+            out("[" + inUse + "] connections are used out of "
+                + connections.size() + " in pool [" + url + "]. Pending ["
+                + getPendingCount() + "], waiting [" + getWaitingCount()
+                + "]. Thread local hits ["
+                + getThreadLocalHits() + "], shared list scans ["
+                + getSharedListScans() + "]. Statement cache hits ["
+                + getStatementCacheHits() + "], misses ["
+                + getStatementCacheMisses() + "], evictions ["
+                + getStatementCacheEvictions() + "].");
+        }
+    }
+
+    public Connection getConnection() throws SQLException
+    {
+        //if there is a connection on the database session, return it!
+        Connection conn = DBSessionMonitor.getSessionConnection(poolUrl);
+        if (conn != null)
+            return conn;
+
+        Connection c =  getConnectionInternal();
+        if(c==null) throw new SQLException("No connection available for pool "+poolUrl, lastCreateFailure);
+        return c;
+    }
+    
+    /**
+     * Selects the connection acquisition engine. In legacy mode every borrow
+     * scans the pool while holding the pool monitor; otherwise idle connections
+     * are leased with a compare-and-set on their state and the pool monitor is
+     * only taken to grow the pool or wait for a connection. Can also be set
+     * with the property DBConnectionPoolMode=legacy.
+     * 
+     * @param legacyMode
+     *            <code>true</code> to serialize borrows on the pool monitor
+     */
+    public void setLegacyMode(boolean legacyMode)
+    {
+        this.legacyMode = legacyMode;
+    }
+
+    public boolean isLegacyMode()
+    {
+        return legacyMode;
+    }
+
+    private Connection getConnectionInternal() throws SQLException
+    {
+        printStat();
+        try
+        {
+            if (legacyMode)
             {
-                Connection conn = createConnection();
-                ((DBConnection)conn).internalClose(); // releases the lease
+                return getConnectionLocked();
             }
-            String _concount = minSize>1?" connections" :" connection";
-            builder.append("Created "+minSize+_concount+" based on 'minSize' configuration");
-            logger.info(builder.toString());
+            DBConnection conn = borrowThreadLocal();
+            if (conn == null) conn = borrowIdle();
+            requestFill();
+            if (conn != null) return conn;
+            if (breakerOpen.get())
+            {
+                // only a returned connection can be handed out
+                if (getInUse() == 0) throw breakerOpenException();
+                return awaitConnection(false);
+            }
+            return awaitConnection(true);
         }
-        catch (Exception ex)
+        finally
         {
-            ex.printStackTrace();
-            System.out.println("Minimum connections in pool cannot be created");
-            logger.fatal("Exception occurred while initializing connection for pool "+poolUrl,ex);
+            checkAlarmLevels();
         }
-        staleManager = new StaleConnectionManager(this);
-        staleManager.setName(poolUrl+"-Sweeper");
-        staleManager.start();
     }
 
-    @SuppressWarnings("unchecked")
-    public synchronized void cleanStaledConnections()
+    /**
+     * Reclaims the connection last returned by the current thread, if no other
+     * thread has leased it in the meantime.
+     * 
+     * @return the leased connection or <code>null</code> if it is not idle.
+     */
+    private DBConnection borrowThreadLocal() throws SQLException
     {
-        out("Starting clean staled connections");
-        long stale = System.currentTimeMillis() - timeout;
-        out("Stale value is " + stale);
-
-        // creating a copy of the list so that if we remove an entry
-        // it won't screw up the iterator
-        LinkedList<Connection> copy =
-            (LinkedList<Connection>) connections.clone();
-        Iterator<Connection> itt = copy.iterator();
-        while (itt.hasNext())
+        DBConnection conn = threadLocalConnection.get();
+        if (conn == null || !conn.lease()) return null;
+        if (conn.isClosed() || !validateOnBorrow(conn))
         {
-            DBConnection conn = (DBConnection) itt.next();
-            out("Connection " + conn.getName() + " last use "
-                    + conn.getLastUse());
-			// a connection can't have state changed while it is being evaluated
-			// to be removed from the pool, that is why it has to be synchronized here
-			synchronized (conn)
-			{
-				if (conn.inUse()) continue;
-				if (!conn.validate())
-				{
-					removeConnection(conn);
-					continue;
-				}
-				if (stale > conn.getLastUse()
-						&& connections.size() > minimumSize)
-					removeConnection(conn);
-			}
-        }
-        if(connections.size() < minimumSize){
-        	int count = minimumSize - connections.size();
-        	for(int i=0; i<count; i++){
-        		Connection c;
-				try {
-					c = createConnection();
-					((DBConnection)c).internalClose();
-				} catch (SQLException e) {
-					logger.warn("Unable to restore minimum number of connections in pool "+poolUrl + " due to an exception",e);
-					out("Unable to restore minimum number of connections in pool "+poolUrl + " due to an exception");
-					return;
-				}        		
-        	}
+            threadLocalConnection.remove();
+            // closing a connection dropped by a firewall can block for minutes
+            removeConnectionAsync(conn);
+            return null;
         }
-        out("Pool clean up done. ["+getInUse()+"] connections are in use out of ["+connections.size()+"] in pool."+poolUrl);
+        threadLocalHits.increment();
+        return prepareLease(conn);
     }
 
-    public synchronized void closeConnections()
+    /**
+     * Leases the first idle connection found without taking any monitor.
+     * 
+     * @return the leased connection or <code>null</code> if none is idle.
+     */
+    private DBConnection borrowIdle() throws SQLException
     {
+        sharedListScans.increment();
         Iterator<Connection> itt = connections.iterator();
         while (itt.hasNext())
         {
             DBConnection conn = (DBConnection) itt.next();
-            removeConnection(conn);
+            if (!conn.lease()) continue;
+            //also need to verify if connection has not been closed by pool 
+            //during cleaning staled connection execution
+            if (conn.isClosed() || !validateOnBorrow(conn))
+            {
+                removeConnectionAsync(conn);
+                continue;
+            }
+            return prepareLease(conn);
         }
+        return null;
     }
 
-    private synchronized void removeConnection(DBConnection conn)
-    {        
-        out("removing connection ["+conn.getName()+"] from the pool");
-        try{
-        	conn.hardClose();
-        }catch(SQLException ex){
-        	out("exception while hardclosing connection:"+ex.getMessage());
-        }
-        connections.remove(conn);       
+    private DBConnection prepareLease(DBConnection conn) throws SQLException
+    {
+        out("Returning connection [" + conn.getName()
+                + "] from the pool for lease");
+        conn.setUsingThreadName(Thread.currentThread().getName());
+        conn.setCheckoutTrace(captureCheckoutTrace());
+        conn.updateCheckoutTime();
+        conn.setAutoCommit(autoCommit);
+        return conn;
     }
 
-    public int getInUse()
+    /**
+     * Queues the current thread behind any other waiting borrower until a
+     * connection is handed over by <code>returnConnection</code> or the
+     * configured DBConnectionWaitTime expires. A connection handed over is
+     * validated like any other borrow, one that fails is removed and the
+     * borrower waits on. Waits of at least DBConnectionWaitWarningThreshold
+     * milliseconds are logged.
+     * 
+     * @param openConnection
+     *            <code>true</code> to open a connection if the pool can grow.
+     *            It is handed over to the longest waiting borrower, which is
+     *            not necessarily this thread, or fails it if the connect
+     *            fails.
+     * @return the leased connection or <code>null</code> if none was handed
+     *         over in time.
+     */
+    private DBConnection awaitConnection(boolean openConnection) throws SQLException
     {
-        int inUse = 0;
-
-        Iterator<Connection> itt = connections.iterator();
-        while (itt.hasNext())
+        PoolConfig config = PoolProperties.getConfig();
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(config.waitTime);
+        try
         {
-            DBConnection conn = (DBConnection) itt.next();
-            if (conn.inUse())
+            DBConnection conn;
+            do
             {
-                inUse++;
+                conn = awaitHandOff(openConnection, deadline);
+                // a broken connection handed over is replaced, for the
+                // longest waiting borrower
+                openConnection = true;
             }
+            while (conn == null && deadline - System.nanoTime() > 0);
+            return conn;
+        }
+        finally
+        {
+            long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (waited >= config.waitWarningThreshold)
+                logger.warn(Thread.currentThread().getName()+" [WARNING] Pool [" + poolUrl
+                        + "] getConnection was made to wait for " + waited + "ms");
         }
-        return inUse;
     }
-    
-    public String getUserThreadList(){
-    	StringBuilder builder = new StringBuilder();
-    	Iterator<Connection> itt = connections.iterator();
-        while (itt.hasNext())
+
+    /**
+     * Parks the current thread in the waiter queue until a connection is
+     * handed over or the deadline passes.
+     * 
+     * @return the leased connection or <code>null</code> if none was handed
+     *         over, or if the one handed over failed validation.
+     */
+    private DBConnection awaitHandOff(boolean openConnection, long deadline) throws SQLException
+    {
+        ConnectionWaiter waiter = new ConnectionWaiter();
+        waiters.offer(waiter);
+        waitingCount.incrementAndGet();
+        try
         {
-            DBConnection conn = (DBConnection) itt.next();
-            if (conn.inUse())
+            // a connection may have been returned before the waiter was queued
+            DBConnection conn = borrowIdle();
+            if (conn != null)
             {
-            	if(builder.length()>0)builder.append(",");
-            	long time = System.currentTimeMillis()-conn.getCheckoutTime();
-                builder.append("Checked out for["+(time)+"] "+conn.getUsingThreadName());
-                builder.append(conn.getUsingStackVal());
+                // a failure meant for this waiter is dropped, it has a connection
+                if (waiter.cancel() || waiter.isFailed()) return conn;
+                // another connection was handed over meanwhile, keep that one
+                returnConnection(conn);
+            }
+            // opened once the waiter is queued, so a connect failing at once
+            // still finds it
+            else if (openConnection) addConnectionAsync();
+            conn = waiter.await(deadline);
+            if (conn != null)
+            {
+                if (!conn.isClosed() && validateOnBorrow(conn)) return prepareLease(conn);
+                removeConnectionAsync(conn);
+                restoreMinimumSize();
+                return null;
             }
+            if (Thread.currentThread().isInterrupted())
+                throw new SQLException("Interrupted while waiting for a connection from pool "+poolUrl);
+            return null;
+        }
+        finally
+        {
+            waitingCount.decrementAndGet();
+            if (waiter.isCancelled()) waiters.remove(waiter);
         }
-        builder.append("**********************************\n");
-        return builder.toString();
     }
 
-    public int getMax()
+    /**
+     * Hands a leased connection to the longest waiting borrower.
+     * 
+     * @return <code>false</code> if nobody is waiting for a connection.
+     */
+    private boolean handOff(DBConnection conn)
     {
-        return poolsize;
+        ConnectionWaiter waiter;
+        while ((waiter = waiters.poll()) != null)
+        {
+            if (waiter.offer(conn)) return true;
+        }
+        return false;
     }
 
-    @Deprecated
     /**
-     * Replaced by getMin() method. Initial size is no longer supported.
+     * Releases a leased connection to the longest waiting borrower or, if
+     * nobody is waiting, back to the pool.
      */
-    public int getInitial()
+    private void releaseLease(DBConnection conn)
     {
-        return minimumSize;
+        // the connection stays leased while it is handed to a waiting borrower
+        if (handOff(conn)) return;
+        conn.expireLease();
+        // a borrower may have queued after the hand off attempt but before
+        // the lease expired, it must not be left waiting for this connection
+        while (!waiters.isEmpty() && conn.lease())
+        {
+            if (handOff(conn)) return;
+            conn.expireLease();
+        }
     }
-    
-    public int getMin()
+
+    private synchronized Connection getConnectionLocked() throws SQLException
     {
-        return minimumSize;
+		DBConnection conn = borrowIdle();
+		if (conn != null) return conn;
+		if (breakerOpen.get()) throw breakerOpenException();
+		if (!reserveSlot())
+		{
+			return getConnectionWait();
+		}
+		return createLeased();
     }
-    
-    public int getCurrentCount(){
-    	return connections.size();
+
+    /**
+     * Opens a connection in a reserved slot, leased by the current thread.
+     */
+    private DBConnection createLeased() throws SQLException
+    {
+		DBConnection connection = createConnection();
+		connection.setUsingThreadName(Thread.currentThread().getName());
+		connection.setCheckoutTrace(captureCheckoutTrace());
+		connection.updateCheckoutTime();
+		return connection;
     }
-    
-    public int getMaxEver(){
-    	return connections.getMaxEver();
+
+    private void checkAlarmLevels()
+    {
+        alarm.update(getInUse(), poolsize, warningLevel, errorLevel);
     }
 
-    public static void setDebugOn()
+    /**
+     * Sets the minimum interval in milliseconds between two logged pool usage
+     * alarms. Can also be set with the property DataSourceAlarmInterval.
+     */
+    public void setAlarmInterval(long alarmInterval)
     {
-        debugOn = true;
+        alarm.setMinInterval(alarmInterval);
     }
 
-    public static void setDebugOff()
+    public long getAlarmInterval()
     {
-        debugOn = false;
+        return alarm.getMinInterval();
     }
+    
+    /**
+     * Captures the borrow site when EnableDBConnectionTracker or the leak
+     * detection is on, for one in DBConnectionTrackerSampleRate borrows. Only
+     * the raw snapshot is taken here, it is formatted when somebody asks for
+     * it.
+     * 
+     * @return the snapshot or <code>null</code> if this borrow isn't tracked.
+     */
+    private Throwable captureCheckoutTrace() {
+    	PoolConfig config = PoolProperties.getConfig();
+    	if(!config.trackerEnabled && leakThreshold<=0) return null;
+    	int sampleRate = config.trackerSampleRate;
+    	if(sampleRate>1 && ThreadLocalRandom.current().nextInt(sampleRate)!=0) return null;
+		return new Throwable("Connection checked out");
+	}
 
-    public String getUrl()
+    /**
+     * Reports every connection held longer than the leak threshold, once per
+     * lease, with the site it was borrowed from if that borrow was sampled,
+     * see DBConnectionTrackerSampleRate. When leak reclaim is on the
+     * physical connection is closed and removed from the pool, so the
+     * borrower gets errors instead of the pool draining.
+     */
+    void detectLeaks()
     {
-        return url;
+        long threshold = leakThreshold;
+        if (threshold <= 0) return;
+        long now = System.currentTimeMillis();
+        Iterator<Connection> itt = connections.iterator();
+        while (itt.hasNext())
+        {
+            DBConnection conn = (DBConnection) itt.next();
+            long checkout = conn.getCheckoutTime();
+            if (!conn.inUse() || checkout <= 0 || now - checkout < threshold
+                    || !conn.markLeakReported(checkout))
+                continue;
+            logger.warn("[LEAK] Connection [" + conn.getName() + "] of pool ["
+                + poolUrl + "] held by thread [" + conn.getUsingThreadName()
+                + "] for " + (now - checkout) + "ms, exceeding the leak threshold of "
+                + threshold + "ms." + (conn.getCheckoutTrace() != null
+                    ? " Checked out at:" + conn.getUsingStackVal()
+                    : " The borrow site wasn't sampled, see DBConnectionTrackerSampleRate."));
+            if (leakReclaim)
+            {
+                logger.warn("Reclaiming leaked connection [" + conn.getName()
+                    + "] of pool [" + poolUrl + "]");
+                removeLeakedConnection(conn);
+            }
+        }
     }
 
-    public String getUser()
+    private void removeLeakedConnection(final DBConnection conn)
     {
-        return props != null ? props.getProperty("user") : null;
+        conn.markRemoved();
+        if (connections.remove(conn)) totalConnections.decrementAndGet();
+        notifyLegacyWaiter();
+        // closed on a closer thread, the leak check runs on the housekeeping
+        // threads shared by all the pools
+        closer.execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    // only the physical connection is closed, the statements
+                    // belong to the borrowing thread which may still be using them
+                    conn.getConnection().close();
+                }
+                catch (SQLException e)
+                {
+                    out("exception while closing leaked connection:" + e.getMessage());
+                }
+            }
+        });
+        if (!waiters.isEmpty()) addConnectionAsync();
+        restoreMinimumSize();
     }
 
-    private void printStat()
+    /**
+     * Sets the time in milliseconds a connection can be held before it is
+     * reported as leaked. Can also be set with the property
+     * DBConnectionLeakThreshold. Zero disables the leak detection.
+     */
+    public synchronized void setLeakThreshold(long leakThreshold)
     {
-        if (debugOn)
+        this.leakThreshold = leakThreshold;
+        if (leakThreshold > 0 && !leakCheckScheduled)
         {
-            int inUse = getInUse();
-            out("[" + inUse + "] connections are used out of "
-                + connections.size() + " in pool [" + url + "].");
+            leakCheckScheduled = true;
+            PoolHousekeeper.scheduleLeakCheck(this);
         }
     }
 
-    public Connection getConnection() throws SQLException
+    public long getLeakThreshold()
     {
-        //if there is a connection on the database session, return it!
-        Connection conn = DBSessionMonitor.getSessionConnection(poolUrl);
-        if (conn != null)
-            return conn;
+        return leakThreshold;
+    }
 
-        Connection c =  getConnectionInternal();
-        if(c==null) throw new SQLException("No connection available for pool "+poolUrl);
-        return c;
+    /**
+     * Sets how often, in milliseconds, connections are checked for leaks.
+     * Can also be set with the property DBConnectionLeakCheckInterval.
+     */
+    public void setLeakCheckInterval(long leakCheckInterval)
+    {
+        this.leakCheckInterval = leakCheckInterval;
     }
-    
-    
-    private synchronized Connection getConnectionInternal() throws SQLException
+
+    public long getLeakCheckInterval()
     {
-        printStat();
-		try
-		{
-			Iterator<Connection> itt = connections.iterator();
-			while (itt.hasNext())
-			{
-				DBConnection conn = (DBConnection) itt.next();
-				// a connection can't have state changed while it is being given
-				// to an executor thread, that is why it has to be synchronized
-				// here
-				synchronized (conn)
-				{
-					//also need to verify if connection has not been closed by pool 
-					//during cleaning staled connection execution
-					if (conn.lease() && !conn.isClosed())
-					{
-						out("Returning connection [" + conn.getName()
-								+ "] from the pool for lease");
-						conn.setUsingThreadName(Thread.currentThread().getName());
-						conn.setUsingStackVal(getStackTrace());
-						conn.updateCheckoutTime();
-						conn.setAutoCommit(autoCommit);
-						return conn;
-					}
-				}
-			}
-			if (connections.size() >= poolsize)
-			{
-				return getConnectionWait();
-			}
-			DBConnection connection = (DBConnection) createConnection();
-			connection.setUsingThreadName(Thread.currentThread().getName());
-			connection.setUsingStackVal(getStackTrace());
-			connection.updateCheckoutTime();
-			return connection;
+        return leakCheckInterval;
+    }
 
-		}
-		finally
-		{
-        	int inUse = getInUse();
-        	if((((double)inUse/poolsize)*100)>=errorLevel){
-        		logger.error("[ERROR] Pool ["+poolUrl+"] reached Error alert level of "+errorLevel+"%.(" +
-        				inUse+ " connections out of "+poolsize+" are in use.)");
-        	}
-        	else
-        	if((((double)inUse/poolsize)*100)>=warningLevel){
-        		logger.warn("[WARNING] Pool ["+poolUrl+"] reached Warning alert level of "+warningLevel+"%.(" +
-        				inUse+ " connections out of "+poolsize+" are in use.)");
-        	}
-        }        
+    /**
+     * When <code>true</code> leaked connections are closed and removed from
+     * the pool. Can also be set with the property DBConnectionLeakReclaim.
+     */
+    public void setLeakReclaim(boolean leakReclaim)
+    {
+        this.leakReclaim = leakReclaim;
     }
-    
-    private String getStackTrace() {
-    	String traceEnabled = PoolProperties.getProperty(ENABLE_DB_CONNECTION_TRACKER);
-    	if(!"true".equals(traceEnabled)) return Thread.currentThread().getName();
-		StackTraceElement[] traces = Thread.currentThread().getStackTrace();		
-		StringBuilder builder = new StringBuilder();
-		builder.append("\n");
-		if(traces.length<2) return "";
-		for(int i=2;i<traces.length;i++){
-			StackTraceElement element = traces[i];
-			String fileName = element.getFileName();			
-			String info = null;
-			if(fileName!=null) info = ":"+element.getFileName()+","+element.getLineNumber();
-			builder.append(element.getClassName()+","+element.getMethodName()+(info==null?"":info));
-			builder.append("\n");
-		}
-		return builder.toString();
-	}
 
-	private boolean isConnectionAvailable(){
-    	return (getInUse()< poolsize);
+    public boolean isLeakReclaim()
+    {
+        return leakReclaim;
     }
-    
+
+	/**
+	 * Waits on the pool monitor until a connection can be leased or opened,
+	 * or DBConnectionWaitTime passes. Connections reserved by the housekeeping
+	 * and slots of connects in progress are neither in use nor available, so
+	 * the state is checked again after every wake up.
+	 * 
+	 * @return the leased connection or <code>null</code> if none could be
+	 *         leased in time.
+	 */
 	private synchronized Connection getConnectionWait() throws SQLException
 	{
+		PoolConfig config = PoolProperties.getConfig();
 		long time1= System.currentTimeMillis();
 		long time2 = time1;
 		
-		while (!isConnectionAvailable())
+		// lock-free returns only notify the pool monitor when somebody is waiting
+		waitingCount.incrementAndGet();
+		try
 		{
-			int waitTime = PoolProperties.getIntProperty(DB_CONNECTION_WAIT_TIME,DEFAULT_WAIT_TIME);
-			try
-			{
-				this.wait(waitTime - (time2-time1));								
-			}
-			catch (InterruptedException e){}
-			finally{
-				time2 = System.currentTimeMillis();
-				logger.warn(Thread.currentThread().getName()+" [WARNING] Pool [" + poolUrl
-						+ "] getConnection was made to wait for "+ (time2 - time1) + "ms");
-			}
-			Iterator<Connection> itt = connections.iterator();
-			while (itt.hasNext())
+			while (time2 - time1 < config.waitTime)
 			{
-				DBConnection conn = (DBConnection) itt.next();
-				// a connection can't have state changed while it is being given
-				// to an executor thread, that is why it has to be synchronized
-				// here
-				synchronized (conn)
+				try
+				{
+					this.wait(config.waitTime - (time2-time1));
+				}
+				catch (InterruptedException e)
 				{
-					//also need to verify if connection has not been closed by pool 
-					//during cleaning staled connection execution
-					if (conn.lease() && !conn.isClosed())
-					{
-						out("Returning connection [" + conn.getName()
-								+ "] from the pool for lease");
-						conn.setUsingThreadName(Thread.currentThread().getName());
-						conn.setUsingStackVal(getStackTrace());
-						conn.updateCheckoutTime();
-						conn.setAutoCommit(autoCommit);
-						return conn;
-					}
+					Thread.currentThread().interrupt();
+					return null;
 				}
+				finally
+				{
+					time2 = System.currentTimeMillis();
+				}
+				DBConnection conn = borrowIdle();
+				if (conn != null) return conn;
+				if (breakerOpen.get()) throw breakerOpenException();
+				if (reserveSlot()) return createLeased();
 			}
 			return null;
 		}
-		return getConnectionInternal();
+		finally
+		{
+			waitingCount.decrementAndGet();
+			if (time2 - time1 >= config.waitWarningThreshold)
+				logger.warn(Thread.currentThread().getName()+" [WARNING] Pool [" + poolUrl
+						+ "] getConnection was made to wait for "+ (time2 - time1) + "ms");
+		}
 	}
 
-    private Connection createConnection() throws SQLException
+    /**
+     * Opens a physical connection in a slot reserved with
+     * <code>reserveSlot()</code> and adds it to the pool, leased by the
+     * caller. The slot is released if the connection can't be opened.
+     */
+    private DBConnection createConnection() throws SQLException
     {
         out("Creating a new connection");
 
-        // Connection conn = DriverManager.getConnection(url, user, password);
-        Connection conn = DriverManager.getConnection(url, props);
-        conn.setAutoCommit(autoCommit);
-        
-        DBConnection c = new DBConnection(conn, this, testSQL);
+        DBConnection c;
+        try
+        {
+            // Connection conn = DriverManager.getConnection(url, user, password);
+            Connection conn = DriverManager.getConnection(url, props);
+            conn.setAutoCommit(autoCommit);
+            c = new DBConnection(conn, this, testSQL);
+        }
+        catch (SQLException e)
+        {
+            totalConnections.decrementAndGet();
+            lastCreateFailure = e;
+            connectFailed();
+            notifyLegacyWaiter();
+            throw e;
+        }
+        lastCreateFailure = null;
+        connectFailures.set(0);
+        if (closeBreaker())
+        {
+            logger.info("Database for pool [" + poolUrl + "] is reachable again, circuit breaker closed");
+        }
         if (debugOn)
         {
-            c.setName("Connection_" + (++count));
+            c.setName("Connection_" + count.incrementAndGet());
         }
         c.setDebug(debugOn);
         c.lease();
@@ -457,50 +1712,83 @@ public class DBConnectionPool
     }
     
     public synchronized void cleanPool(){
-    	@SuppressWarnings("unchecked")
-		LinkedList<Connection> copy =
-                (LinkedList<Connection>) connections.clone();
-            Iterator<Connection> itt = copy.iterator();
+            Iterator<Connection> itt = connections.iterator();
             while (itt.hasNext())
             {
                 DBConnection conn = (DBConnection) itt.next();
                 removeConnection(conn);
                 logger.info("Connection removed from the pool by cleanPool method:" + conn.getName());
             }
-            if(connections.size() < minimumSize){
-            	int count = minimumSize - connections.size();
-            	for(int i=0; i<count; i++){
-            		Connection c;
-    				try {
-    					c = createConnection();
-    					((DBConnection)c).internalClose();
-    				} catch (SQLException e) {
-    					logger.warn("Unable to restore minimum number of connections in pool "+poolUrl + " due to an exception",e);
-    					out("Unable to restore minimum number of connections in pool "+poolUrl + " due to an exception");
-    					return;
-    				}        		
-            	}
-            }
+            restoreMinimumSize();
             notifyAll();
     }
 
-    public synchronized void returnConnection(DBConnection conn)
+    public void returnConnection(DBConnection conn)
     {
         try
         {
-            if (conn.isClosed())
+            if (conn.isClosed() || !validateOnReturn(conn))
             {
-                removeConnection(conn);               
+                removeConnectionAsync(conn);
+                if (!waiters.isEmpty()) addConnectionAsync();
+                restoreMinimumSize();
                 return;
             }              
-            conn.expireLease();
+            if (isPastLifetime(conn, System.currentTimeMillis())
+                    && retireConnection(conn)) return;
+            // lease details are cleared before the lease expires, once expired
+            // the connection can be taken by another thread at any time
             conn.setUsingThreadName("");
             conn.setUsingStackVal("");
             conn.clearCheckoutTime();
+            if (!legacyMode) threadLocalConnection.set(conn);
+            releaseLease(conn);
+            // the replacement can open before the lease is released, the
+            // filler then leaves the retirement to this return
+            if (conn.isReplaced() && conn.reserve()) retireConnection(conn);
+            // returns are where an alarm episode clears
+            checkAlarmLevels();
             printStat();
         }catch (SQLException e){}
         finally{
-        	notify();
+        	notifyLegacyWaiter();
+        }
+    }
+
+    private boolean validateOnReturn(DBConnection conn)
+    {
+        if (validation != VALIDATE_ON_RETURN
+                || conn.validate(validationIsValid, validationTimeout)) return true;
+        logger.warn("Connection [" + conn.getName() + "] of pool [" + poolUrl
+            + "] failed validation on return and is removed from the pool");
+        return false;
+    }
+
+    /**
+     * Removes a leased connection that can't be returned to the pool, for
+     * instance because its rollback failed, and opens a replacement if
+     * borrowers need it.
+     */
+    void discardConnection(DBConnection conn)
+    {
+        logger.warn("Connection [" + conn.getName() + "] of pool [" + poolUrl
+            + "] couldn't be reset on return and is removed from the pool");
+        removeConnectionAsync(conn);
+        if (!waiters.isEmpty()) addConnectionAsync();
+        restoreMinimumSize();
+        notifyLegacyWaiter();
+    }
+
+    /**
+     * Wakes up a borrower waiting on the pool monitor in legacy mode, after
+     * a connection or a slot became available.
+     */
+    private void notifyLegacyWaiter()
+    {
+        if (!legacyMode) return;
+        synchronized (this)
+        {
+            notify();
         }
     }
 
@@ -544,13 +1832,18 @@ public class DBConnectionPool
     }
 }
 
-class PoolList<E> extends LinkedList<E>{
+/**
+ * Copy-on-write list of the pool connections. Borrowers iterate over a
+ * snapshot without locking, the list only changes when the pool grows or
+ * shrinks.
+ */
+class PoolList<E> extends CopyOnWriteArrayList<E>{
 	
 	private static final long serialVersionUID = 1L;
-	private int maxEver=0;
+	private volatile int maxEver=0;
 
 	@Override
-	public boolean add(E e) {		
+	public synchronized boolean add(E e) {		
 		boolean b = super.add(e);
 		if(size()>maxEver) maxEver = size();
 		return b;
@@ -566,3 +1859,93 @@ class PoolList<E> extends LinkedList<E>{
 	}
 	
 }
+
+/**
+ * Creates the daemon threads used by a pool for background work.
+ */
+class PoolThreadFactory implements ThreadFactory
+{
+	private final String name;
+	private final AtomicInteger sequence = new AtomicInteger();
+
+	PoolThreadFactory(String name)
+	{
+		this.name = name;
+	}
+
+	public Thread newThread(Runnable r)
+	{
+		Thread thread = new Thread(r, name + "-" + sequence.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	}
+}
+
+/**
+ * A borrower parked in the pool waiter queue. A returned connection is handed
+ * over still leased, so no other thread can take it between the return and
+ * the wake up of the waiter.
+ */
+class ConnectionWaiter
+{
+	private static final Object CANCELLED = new Object();
+	private final Thread thread = Thread.currentThread();
+	private final AtomicReference<Object> slot = new AtomicReference<Object>();
+
+	boolean offer(DBConnection conn)
+	{
+		if (!slot.compareAndSet(null, conn)) return false;
+		LockSupport.unpark(thread);
+		return true;
+	}
+
+	/**
+	 * Wakes up the waiting thread with an error instead of a connection.
+	 */
+	boolean fail(SQLException e)
+	{
+		if (!slot.compareAndSet(null, e)) return false;
+		LockSupport.unpark(thread);
+		return true;
+	}
+
+	boolean cancel()
+	{
+		return slot.compareAndSet(null, CANCELLED);
+	}
+
+	boolean isCancelled()
+	{
+		return slot.get() == CANCELLED;
+	}
+
+	boolean isFailed()
+	{
+		return slot.get() instanceof SQLException;
+	}
+
+	/**
+	 * Parks the waiting thread until a connection is handed over, the waiter
+	 * is failed, the deadline passes or the thread is interrupted.
+	 * 
+	 * @return the connection handed over or <code>null</code> if none.
+	 * @throws SQLException
+	 *             if the waiter was failed instead.
+	 */
+	DBConnection await(long deadline) throws SQLException
+	{
+		while (true)
+		{
+			Object value = slot.get();
+			if (value instanceof DBConnection) return (DBConnection) value;
+			if (value instanceof SQLException) throw (SQLException) value;
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0 || thread.isInterrupted())
+			{
+				if (cancel()) return null;
+				continue;
+			}
+			LockSupport.parkNanos(this, remaining);
+		}
+	}
+}
@@ -26,11 +26,9 @@ import java.sql.SQLXML;
 import java.sql.Statement;
 import java.sql.Time;
 import java.sql.Timestamp;
-import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+
+import org.apache.log4j.Logger;
 
 /**
  * This is a wrapper class created for audit purpose as well to control the
@@ -45,9 +43,12 @@ public class DBPreparedStatement extends DBStatement implements
 		PreparedStatement {
 
 	private String sql;
-	private Map<Integer, Object> paramMap;
-	private List<Map<Integer, Object>> batchList = null;
-	private int sqlParamCount;
+	// parameters kept for the audit log, null when audit is off so the
+	// setters don't capture anything
+	private ParameterCapture params;
+	private BatchCapture batch = null;
+	// rows added since the last executeBatch or clearBatch
+	private boolean batchPending;
 
 	/**
 	 * @param statement
@@ -56,22 +57,18 @@ public class DBPreparedStatement extends DBStatement implements
 		super(statement);
 
 		this.sql = sql;
-		sqlParamCount = countParameters(sql);
-		paramMap = new HashMap<Integer, Object>(sqlParamCount);
 	}
 
-	protected int countParameters(String sql) {
-		int paramCount = 0;
-		char[] c = sql.toCharArray();
-		for (int i = 0; i < c.length; i++) {
-			if (c[i] == '?' || c[i] == ':')
-				paramCount++;
-		}
-		return paramCount;
+	void setAudit(Logger auditLogger, String dataSourceUrl, boolean captureOnly) {
+		super.setAudit(auditLogger, dataSourceUrl, captureOnly);
+		if (auditLogger == null)
+			params = null;
+		else if (params == null)
+			params = new ParameterCapture(countParameters(sql));
 	}
 
-	protected void addParam(int index, Object value) {
-		paramMap.put(IntegerFactory.get(index), value);
+	protected int countParameters(String sql) {
+		return SqlLexer.countParameters(sql);
 	}
 
 	/*
@@ -82,29 +79,17 @@ public class DBPreparedStatement extends DBStatement implements
 	public String toString() {
 		StringBuffer buffer = new StringBuffer();
 		buffer.append(sql);
-		if (batchList != null) {
-			for (Map<Integer, Object> parameters : batchList)
-				printParameters(buffer, parameters);
-		} else
-			printParameters(buffer, paramMap);
+		if (batch != null && batch.getRowCount() > 0) {
+			batch.appendTo(buffer);
+		} else if (params != null)
+			params.appendTo(buffer);
 
 		return buffer.toString();
 	}
 
-	private void printParameters(StringBuffer buffer,
-			Map<Integer, Object> parameters) {
-		buffer.append("\n{");
-		int paramCount = parameters.size();
-		for (int i = 0; i < paramCount; i++) {
-			if (i > 0)
-				buffer.append(",");
-			buffer.append("[");
-			buffer.append(i);
-			buffer.append("]");
-			Object key = IntegerFactory.get(i + 1);
-			buffer.append(parameters.get(key));
-		}
-		buffer.append("}");
+	private void clearParams() {
+		if (params != null)
+			params.clear();
 	}
 
 	/*
@@ -113,7 +98,7 @@ public class DBPreparedStatement extends DBStatement implements
 	 * @see java.sql.Statement#close()
 	 */
 	public void close() throws SQLException {
-		paramMap.clear();
+		clearParams();
 		super.close();
 	}
 
@@ -123,7 +108,7 @@ public class DBPreparedStatement extends DBStatement implements
 	 * @see java.sql.Statement#cancel()
 	 */
 	public void cancel() throws SQLException {
-		paramMap.clear();
+		clearParams();
 		super.cancel();
 	}
 
@@ -133,17 +118,52 @@ public class DBPreparedStatement extends DBStatement implements
 	 * @see java.sql.Statement#clearBatch()
 	 */
 	public void clearBatch() throws SQLException {
-		paramMap.clear();
+		clearParams();
+		if (batch != null)
+			batch.reset();
+		batchPending = false;
 		super.clearBatch();
 	}
 
+	protected void recycle() throws SQLException {
+		clearParams();
+		if (batch != null)
+			batch.reset();
+		if (batchPending) {
+			batchPending = false;
+			wrappedStatement.clearBatch();
+		}
+		((PreparedStatement) wrappedStatement).clearParameters();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.sql.Statement#executeBatch()
+	 */
+	public int[] executeBatch() throws SQLException {
+		try {
+			return super.executeBatch();
+		} finally {
+			// the batch is logged by the execute, the driver starts a new one
+			if (batch != null)
+				batch.reset();
+			batchPending = false;
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
 	 * @see java.sql.PreparedStatement#executeQuery()
 	 */
 	public ResultSet executeQuery() throws SQLException {
-		return add(((PreparedStatement) wrappedStatement).executeQuery());
+		long starttime = beginExecute();
+		try {
+			return add(((PreparedStatement) wrappedStatement).executeQuery());
+		} finally {
+			endExecute(starttime);
+		}
 	}
 
 	/*
@@ -152,7 +172,12 @@ public class DBPreparedStatement extends DBStatement implements
 	 * @see java.sql.PreparedStatement#executeUpdate()
 	 */
 	public int executeUpdate() throws SQLException {
-		return ((PreparedStatement) wrappedStatement).executeUpdate();
+		long starttime = beginExecute();
+		try {
+			return ((PreparedStatement) wrappedStatement).executeUpdate();
+		} finally {
+			endExecute(starttime);
+		}
 	}
 
 	/*
@@ -161,7 +186,8 @@ public class DBPreparedStatement extends DBStatement implements
 	 * @see java.sql.PreparedStatement#setNull(int, int)
 	 */
 	public void setNull(int parameterIndex, int sqlType) throws SQLException {
-		addParam(parameterIndex, "null");
+		if (params != null)
+			params.setObject(parameterIndex, null);
 		((PreparedStatement) wrappedStatement).setNull(parameterIndex, sqlType);
 	}
 
@@ -171,7 +197,8 @@ public class DBPreparedStatement extends DBStatement implements
 	 * @see java.sql.PreparedStatement#setBoolean(int, boolean)
 	 */
 	public void setBoolean(int parameterIndex, boolean x) throws SQLException {
-		addParam(parameterIndex, Boolean.valueOf(x));
+		if (params != null)
+			params.setBoolean(parameterIndex, x);
 		((PreparedStatement) wrappedStatement).setBoolean(parameterIndex, x);
 	}
 
@@ -181,7 +208,8 @@ public class DBPreparedStatement extends DBStatement implements
 	 * @see java.sql.PreparedStatement#setByte(int, byte)
 	 */
 	public void setByte(int parameterIndex, byte x) throws SQLException {
-		addParam(parameterIndex, Byte.toString(x));
+		if (params != null)
+			params.setByte(parameterIndex, x);
 		((PreparedStatement) wrappedStatement).setByte(parameterIndex, x);
 	}
 
@@ -191,7 +219,8 @@ public class DBPreparedStatement extends DBStatement implements
 	 * @see java.sql.PreparedStatement#setShort(int, short)
 	 */
 	public void setShort(int parameterIndex, short x) throws SQLException {
-		addParam(parameterIndex, Short.toString(x));
+		if (params != null)
+			params.setShort(parameterIndex, x);
 		((PreparedStatement) wrappedStatement).setShort(parameterIndex, x);
 	}
 
@@ -201,7 +230,8 @@ public class DBPreparedStatement extends DBStatement implements
 	 * @see java.sql.PreparedStatement#setInt(int, int)
 	 */
 	public void setInt(int parameterIndex, int x) throws SQLException {
-		addParam(parameterIndex, Integer.toString(x));
+		if (params != null)
+			params.setInt(parameterIndex, x);
 		((PreparedStatement) wrappedStatement).setInt(parameterIndex, x);
 	}
 
@@ -211,7 +241,8 @@ public class DBPreparedStatement extends DBStatement implements
 	 * @see java.sql.PreparedStatement#setLong(int, long)
 	 */
 	public void setLong(int parameterIndex, long x) throws SQLException {
-		addParam(parameterIndex, Long.toString(x));
+		if (params != null)
+			params.setLong(parameterIndex, x);
 		((PreparedStatement) wrappedStatement).setLong(parameterIndex, x);
 	}
 
@@ -221,7 +252,8 @@ public class DBPreparedStatement extends DBStatement implements
 	 * @see java.sql.PreparedStatement#setFloat(int, float)
 	 */
 	public void setFloat(int parameterIndex, float x) throws SQLException {
-		addParam(parameterIndex, Float.toString(x));
+		if (params != null)
+			params.setFloat(parameterIndex, x);
 		((PreparedStatement) wrappedStatement).setFloat(parameterIndex, x);
 	}
 
@@ -231,7 +263,8 @@ public class DBPreparedStatement extends DBStatement implements
 	 * @see java.sql.PreparedStatement#setDouble(int, double)
 	 */
 	public void setDouble(int parameterIndex, double x) throws SQLException {
-		addParam(parameterIndex, Double.toString(x));
+		if (params != null)
+			params.setDouble(parameterIndex, x);
 		((PreparedStatement) wrappedStatement).setDouble(parameterIndex, x);
 	}
 
@@ -242,7 +275,8 @@ public class DBPreparedStatement extends DBStatement implements
 	 */
 	public void setBigDecimal(int parameterIndex, BigDecimal x)
 			throws SQLException {
-		addParam(parameterIndex, x == null ? "null" : x.toString());
+		if (params != null)
+			params.setObject(parameterIndex, x);
 		((PreparedStatement) wrappedStatement).setBigDecimal(parameterIndex, x);
 	}
 
@@ -252,7 +286,8 @@ public class DBPreparedStatement extends DBStatement implements
 	 * @see java.sql.PreparedStatement#setString(int, java.lang.String)
 	 */
 	public void setString(int parameterIndex, String x) throws SQLException {
-		addParam(parameterIndex, x);
+		if (params != null)
+			params.setObject(parameterIndex, x);
 		((PreparedStatement) wrappedStatement).setString(parameterIndex, x);
 	}
 
@@ -262,7 +297,8 @@ public class DBPreparedStatement extends DBStatement implements
 	 * @see java.sql.PreparedStatement#setBytes(int, byte[])
 	 */
 	public void setBytes(int parameterIndex, byte[] x) throws SQLException {
-		addParam(parameterIndex, String.valueOf(x));
+		if (params != null)
+			params.setObject(parameterIndex, x);
 		((PreparedStatement) wrappedStatement).setBytes(parameterIndex, x);
 	}
 
@@ -272,7 +308,8 @@ public class DBPreparedStatement extends DBStatement implements
 	 * @see java.sql.PreparedStatement#setDate(int, java.sql.Date)
 	 */
 	public void setDate(int parameterIndex, Date x) throws SQLException {
-		addParam(parameterIndex, x == null ? "null" : x.toString());
+		if (params != null)
+			params.setObject(parameterIndex, x);
 		((PreparedStatement) wrappedStatement).setDate(parameterIndex, x);
 	}
 
@@ -282,7 +319,8 @@ public class DBPreparedStatement extends DBStatement implements
 	 * @see java.sql.PreparedStatement#setTime(int, java.sql.Time)
 	 */
 	public void setTime(int parameterIndex, Time x) throws SQLException {
-		addParam(parameterIndex, x == null ? "null" : x.toString());
+		if (params != null)
+			params.setObject(parameterIndex, x);
 		((PreparedStatement) wrappedStatement).setTime(parameterIndex, x);
 	}
 
@@ -293,7 +331,8 @@ public class DBPreparedStatement extends DBStatement implements
 	 */
 	public void setTimestamp(int parameterIndex, Timestamp x)
 			throws SQLException {
-		addParam(parameterIndex, x == null ? "null" : x.toString());
+		if (params != null)
+			params.setObject(parameterIndex, x);
 		((PreparedStatement) wrappedStatement).setTimestamp(parameterIndex, x);
 	}
 
@@ -305,7 +344,8 @@ public class DBPreparedStatement extends DBStatement implements
 	 */
 	public void setAsciiStream(int parameterIndex, InputStream x, int length)
 			throws SQLException {
-		addParam(parameterIndex, "AsciiStream[" + length + "");
+		if (params != null)
+			params.setObject(parameterIndex, "AsciiStream[" + length);
 		((PreparedStatement) wrappedStatement).setAsciiStream(parameterIndex,
 				x, length);
 	}
@@ -319,7 +359,8 @@ public class DBPreparedStatement extends DBStatement implements
 	@Deprecated
 	public void setUnicodeStream(int parameterIndex, InputStream x, int length)
 			throws SQLException {
-		addParam(parameterIndex, "UnicodeStream[" + length + "");
+		if (params != null)
+			params.setObject(parameterIndex, "UnicodeStream[" + length);
 		((PreparedStatement) wrappedStatement).setUnicodeStream(parameterIndex,
 				x, length);
 	}
@@ -332,7 +373,8 @@ public class DBPreparedStatement extends DBStatement implements
 	 */
 	public void setBinaryStream(int parameterIndex, InputStream x, int length)
 			throws SQLException {
-		addParam(parameterIndex, "BinaryStream[" + length + "");
+		if (params != null)
+			params.setObject(parameterIndex, "BinaryStream[" + length);
 		((PreparedStatement) wrappedStatement).setBinaryStream(parameterIndex,
 				x, length);
 	}
@@ -343,7 +385,7 @@ public class DBPreparedStatement extends DBStatement implements
 	 * @see java.sql.PreparedStatement#clearParameters()
 	 */
 	public void clearParameters() throws SQLException {
-		paramMap.clear();
+		clearParams();
 		((PreparedStatement) wrappedStatement).clearParameters();
 	}
 
@@ -355,7 +397,8 @@ public class DBPreparedStatement extends DBStatement implements
 	 */
 	public void setObject(int parameterIndex, Object x, int targetSqlType,
 			int scale) throws SQLException {
-		addParam(parameterIndex, x == null ? "null" : x.toString());
+		if (params != null)
+			params.setObject(parameterIndex, x);
 		((PreparedStatement) wrappedStatement).setObject(parameterIndex, x,
 				targetSqlType);
 	}
@@ -367,7 +410,8 @@ public class DBPreparedStatement extends DBStatement implements
 	 */
 	public void setObject(int parameterIndex, Object x, int targetSqlType)
 			throws SQLException {
-		addParam(parameterIndex, x == null ? "null" : x.toString());
+		if (params != null)
+			params.setObject(parameterIndex, x);
 		((PreparedStatement) wrappedStatement).setObject(parameterIndex, x,
 				targetSqlType);
 	}
@@ -378,7 +422,8 @@ public class DBPreparedStatement extends DBStatement implements
 	 * @see java.sql.PreparedStatement#setObject(int, java.lang.Object)
 	 */
 	public void setObject(int parameterIndex, Object x) throws SQLException {
-		addParam(parameterIndex, x == null ? "null" : x.toString());
+		if (params != null)
+			params.setObject(parameterIndex, x);
 		((PreparedStatement) wrappedStatement).setObject(parameterIndex, x);
 	}
 
@@ -388,7 +433,12 @@ public class DBPreparedStatement extends DBStatement implements
 	 * @see java.sql.PreparedStatement#execute()
 	 */
 	public boolean execute() throws SQLException {
-		return ((PreparedStatement) wrappedStatement).execute();
+		long starttime = beginExecute();
+		try {
+			return ((PreparedStatement) wrappedStatement).execute();
+		} finally {
+			endExecute(starttime);
+		}
 	}
 
 	/*
@@ -397,11 +447,14 @@ public class DBPreparedStatement extends DBStatement implements
 	 * @see java.sql.PreparedStatement#addBatch()
 	 */
 	public void addBatch() throws SQLException {
-		if (batchList == null)
-			batchList = new ArrayList<Map<Integer, Object>>();
+		if (params != null) {
+			if (batch == null)
+				batch = new BatchCapture(PoolProperties.getConfig().auditBatchRows);
 
-		batchList.add(paramMap);
-		paramMap = new HashMap<Integer, Object>(sqlParamCount);
+			batch.add(params);
+			params.clear();
+		}
+		batchPending = true;
 		((PreparedStatement) wrappedStatement).addBatch();
 	}
 
@@ -413,7 +466,8 @@ public class DBPreparedStatement extends DBStatement implements
 	 */
 	public void setCharacterStream(int parameterIndex, Reader reader, int length)
 			throws SQLException {
-		addParam(parameterIndex, "CharacterStream[" + length + "");
+		if (params != null)
+			params.setObject(parameterIndex, "CharacterStream[" + length);
 		((PreparedStatement) wrappedStatement).setCharacterStream(
 				parameterIndex, reader, length);
 	}
@@ -424,7 +478,8 @@ public class DBPreparedStatement extends DBStatement implements
 	 * @see java.sql.PreparedStatement#setRef(int, java.sql.Ref)
 	 */
 	public void setRef(int i, Ref x) throws SQLException {
-		addParam(i, x == null ? "null" : x.toString());
+		if (params != null)
+			params.setObject(i, x);
 		((PreparedStatement) wrappedStatement).setRef(i, x);
 	}
 
@@ -434,7 +489,8 @@ public class DBPreparedStatement extends DBStatement implements
 	 * @see java.sql.PreparedStatement#setBlob(int, java.sql.Blob)
 	 */
 	public void setBlob(int i, Blob x) throws SQLException {
-		addParam(i, "<Blob>");
+		if (params != null)
+			params.setObject(i, "<Blob>");
 		((PreparedStatement) wrappedStatement).setBlob(i, x);
 	}
 
@@ -444,7 +500,8 @@ public class DBPreparedStatement extends DBStatement implements
 	 * @see java.sql.PreparedStatement#setClob(int, java.sql.Clob)
 	 */
 	public void setClob(int i, Clob x) throws SQLException {
-		addParam(i, "<Clob>");
+		if (params != null)
+			params.setObject(i, "<Clob>");
 		((PreparedStatement) wrappedStatement).setClob(i, x);
 	}
 
@@ -454,7 +511,8 @@ public class DBPreparedStatement extends DBStatement implements
 	 * @see java.sql.PreparedStatement#setArray(int, java.sql.Array)
 	 */
 	public void setArray(int i, Array x) throws SQLException {
-		addParam(i, x == null ? "null" : x.toString());
+		if (params != null)
+			params.setObject(i, x);
 		((PreparedStatement) wrappedStatement).setArray(i, x);
 	}
 
@@ -475,7 +533,8 @@ public class DBPreparedStatement extends DBStatement implements
 	 */
 	public void setDate(int parameterIndex, Date x, Calendar cal)
 			throws SQLException {
-		addParam(parameterIndex, x == null ? "null" : x.toString());
+		if (params != null)
+			params.setObject(parameterIndex, x);
 		((PreparedStatement) wrappedStatement).setDate(parameterIndex, x, cal);
 	}
 
@@ -487,7 +546,8 @@ public class DBPreparedStatement extends DBStatement implements
 	 */
 	public void setTime(int parameterIndex, Time x, Calendar cal)
 			throws SQLException {
-		addParam(parameterIndex, x == null ? "null" : x.toString());
+		if (params != null)
+			params.setObject(parameterIndex, x);
 		((PreparedStatement) wrappedStatement).setTime(parameterIndex, x, cal);
 	}
 
@@ -499,7 +559,8 @@ public class DBPreparedStatement extends DBStatement implements
 	 */
 	public void setTimestamp(int parameterIndex, Timestamp x, Calendar cal)
 			throws SQLException {
-		addParam(parameterIndex, x == null ? "null" : x.toString());
+		if (params != null)
+			params.setObject(parameterIndex, x);
 		((PreparedStatement) wrappedStatement).setTimestamp(parameterIndex, x,
 				cal);
 	}
@@ -511,7 +572,8 @@ public class DBPreparedStatement extends DBStatement implements
 	 */
 	public void setNull(int paramIndex, int sqlType, String typeName)
 			throws SQLException {
-		addParam(paramIndex, "null");
+		if (params != null)
+			params.setObject(paramIndex, null);
 		((PreparedStatement) wrappedStatement).setNull(paramIndex, sqlType,
 				typeName);
 	}
@@ -522,7 +584,8 @@ public class DBPreparedStatement extends DBStatement implements
 	 * @see java.sql.PreparedStatement#setURL(int, java.net.URL)
 	 */
 	public void setURL(int parameterIndex, URL x) throws SQLException {
-		addParam(parameterIndex, x == null ? "null" : x.toString());
+		if (params != null)
+			params.setObject(parameterIndex, x);
 		((PreparedStatement) wrappedStatement).setURL(parameterIndex, x);
 	}
 
@@ -536,11 +599,11 @@ public class DBPreparedStatement extends DBStatement implements
 	}
 
 	public boolean isClosed() throws SQLException {
-		return ((PreparedStatement) wrappedStatement).isClosed();
+		return super.isClosed();
 	}
 
 	public void setPoolable(boolean poolable) throws SQLException {
-		((PreparedStatement) wrappedStatement).isPoolable();
+		super.setPoolable(poolable);
 	}
 
 	public boolean isPoolable() throws SQLException {
@@ -15,6 +15,8 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
+import org.apache.log4j.Logger;
+
 /**
  * @author Suresh Kannan
  * 
@@ -30,12 +32,135 @@ public class DBStatement implements Statement
 	private int[] columnIndexes;
 	private String[] columnNames;
 	private static final String simpleName = DBStatement.class.getSimpleName();
+    private static final String ALARM_MESSAGE_MAXTIME1 =
+        "[WARNING] SQL statement execution exceeded the threshold of ";
+    private static final String ALARM_MESSAGE_MAXTIME2 =
+        "(ms), defined by property name " + PoolConfig.DB_STATEMENT_WARNING_THRESHOLD + "\n";
+    private static final String LOG_MESSAGE_ELAPSEDTIME =
+        "\nElapsed time (ms) =";
+
+    // audit logger of the executed statements, null when audit is off
+    private Logger auditLogger;
+    private String dataSourceUrl;
+    // true when the LogHandler1 proxy writes the audit line, the statement
+    // then only captures what the line shows
+    private boolean captureOnly;
+    // statement cache of the connection, null when the statement isn't cached
+    private StatementCache cache;
+    private StatementCache.Key cacheKey;
+    // true while the statement is idle in the statement cache
+    private boolean idle;
+    // true once the application changed a setting of the driver statement,
+    // such a statement is closed instead of going back to the cache
+    private boolean settingsChanged;
+    // connection told about every execute, so it knows a transaction is open
+    private DBConnection owner;
 
     protected DBStatement(Statement statement)
     {
         wrappedStatement = statement;
     }
 
+    /**
+     * Turns the audit log of the executed statements on, or off when the
+     * logger is <code>null</code>. With <code>captureOnly</code> the bind
+     * values are kept for the audit line but the statement doesn't log
+     * itself, the LogHandler1 proxy around it does.
+     */
+    void setAudit(Logger auditLogger, String dataSourceUrl, boolean captureOnly)
+    {
+        this.auditLogger = auditLogger;
+        this.dataSourceUrl = dataSourceUrl;
+        this.captureOnly = captureOnly;
+    }
+
+    /**
+     * Makes {@link #close()} return the statement to the cache instead of
+     * closing it.
+     */
+    void setCache(StatementCache cache, StatementCache.Key cacheKey)
+    {
+        this.cache = cache;
+        this.cacheKey = cacheKey;
+    }
+
+    void setOwner(DBConnection owner)
+    {
+        this.owner = owner;
+    }
+
+    /**
+     * Called when the statement is taken out of the cache again.
+     */
+    void reuse()
+    {
+        idle = false;
+    }
+
+    /**
+     * Resets the statement before it goes back to the cache. Statements
+     * whose driver settings were changed are never put back, so only the
+     * parameters and batches have to be cleared here.
+     */
+    protected void recycle() throws SQLException
+    {
+    }
+
+    /**
+     * Closes the driver statement, used when a cached statement is evicted.
+     */
+    void closeQuietly()
+    {
+        closeResultSets();
+        try
+        {
+            wrappedStatement.close();
+        }
+        catch (SQLException e)
+        {
+            // just ignored
+        }
+    }
+
+    protected final boolean isAudited()
+    {
+        return auditLogger != null;
+    }
+
+    /**
+     * @return the start time of an execute, only read when audit is on.
+     */
+    protected final long beginExecute()
+    {
+        if (owner != null) owner.markDirty();
+        return auditLogger == null || captureOnly ? 0 : System.currentTimeMillis();
+    }
+
+    protected final void endExecute(long starttime)
+    {
+        if (auditLogger != null && !captureOnly)
+            audit(auditLogger, dataSourceUrl, this,
+                System.currentTimeMillis() - starttime);
+    }
+
+    /**
+     * Logs an executed statement with its elapsed time, and a warning when it
+     * took longer than the DBStatementWarningThreshold.
+     */
+    static void audit(Logger logger, String dataSourceUrl,
+        Statement statement, long elapsedtime)
+    {
+        String logmessage =
+            Thread.currentThread().getName() + statement.toString() + "  "
+                + "\n" + dataSourceUrl + LOG_MESSAGE_ELAPSEDTIME + elapsedtime;
+        long maxtime = PoolProperties.getConfig().statementWarningThreshold;
+
+        if (elapsedtime > maxtime)
+            logger.warn(ALARM_MESSAGE_MAXTIME1 + maxtime
+                + ALARM_MESSAGE_MAXTIME2 + logmessage);
+        logger.info(logmessage);
+    }
+
     protected ResultSet add(ResultSet rs)
     {
         resultSetList.add(rs);
@@ -68,7 +193,15 @@ public class DBStatement implements Statement
     public ResultSet executeQuery(String sql) throws SQLException
     {
     	this.sql = sql;
-        return add(wrappedStatement.executeQuery(sql));
+        long starttime = beginExecute();
+        try
+        {
+            return add(wrappedStatement.executeQuery(sql));
+        }
+        finally
+        {
+            endExecute(starttime);
+        }
     }
 
     /*
@@ -79,7 +212,15 @@ public class DBStatement implements Statement
     public int executeUpdate(String sql) throws SQLException
     {
     	this.sql = sql;
-        return wrappedStatement.executeUpdate(sql);
+        long starttime = beginExecute();
+        try
+        {
+            return wrappedStatement.executeUpdate(sql);
+        }
+        finally
+        {
+            endExecute(starttime);
+        }
     }
 
     /*
@@ -89,7 +230,21 @@ public class DBStatement implements Statement
      */
     public void close() throws SQLException
     {
+        if (idle) return;
         closeResultSets();
+        if (cache != null && !settingsChanged)
+        {
+            try
+            {
+                recycle();
+                idle = cache.release(cacheKey, this);
+            }
+            finally
+            {
+                if (!idle) wrappedStatement.close();
+            }
+            return;
+        }
         wrappedStatement.close();
     }
 
@@ -110,6 +265,7 @@ public class DBStatement implements Statement
      */
     public void setMaxFieldSize(int max) throws SQLException
     {
+        settingsChanged = true;
         wrappedStatement.setMaxFieldSize(max);
     }
 
@@ -130,6 +286,7 @@ public class DBStatement implements Statement
      */
     public void setMaxRows(int max) throws SQLException
     {
+        settingsChanged = true;
         wrappedStatement.setMaxRows(max);
     }
 
@@ -140,6 +297,7 @@ public class DBStatement implements Statement
      */
     public void setEscapeProcessing(boolean enable) throws SQLException
     {
+        settingsChanged = true;
         wrappedStatement.setEscapeProcessing(enable);
     }
 
@@ -160,6 +318,8 @@ public class DBStatement implements Statement
      */
     public void setQueryTimeout(int seconds) throws SQLException
     {
+        // the connection sets the pool query timeout again on every prepare,
+        // changing it doesn't keep the statement out of the cache
         wrappedStatement.setQueryTimeout(seconds);
     }
 
@@ -201,6 +361,7 @@ public class DBStatement implements Statement
      */
     public void setCursorName(String name) throws SQLException
     {
+        settingsChanged = true;
         wrappedStatement.setCursorName(name);
     }
 
@@ -212,7 +373,15 @@ public class DBStatement implements Statement
     public boolean execute(String sql) throws SQLException
     {
     	this.sql = sql;
-        return wrappedStatement.execute(sql);
+        long starttime = beginExecute();
+        try
+        {
+            return wrappedStatement.execute(sql);
+        }
+        finally
+        {
+            endExecute(starttime);
+        }
     }
 
     /*
@@ -252,6 +421,7 @@ public class DBStatement implements Statement
      */
     public void setFetchDirection(int direction) throws SQLException
     {
+        settingsChanged = true;
         wrappedStatement.setFetchDirection(direction);
     }
 
@@ -272,6 +442,7 @@ public class DBStatement implements Statement
      */
     public void setFetchSize(int rows) throws SQLException
     {
+        settingsChanged = true;
         wrappedStatement.setFetchSize(rows);
     }
 
@@ -332,7 +503,15 @@ public class DBStatement implements Statement
      */
     public int[] executeBatch() throws SQLException
     {
-        return wrappedStatement.executeBatch();
+        long starttime = beginExecute();
+        try
+        {
+            return wrappedStatement.executeBatch();
+        }
+        finally
+        {
+            endExecute(starttime);
+        }
     }
 
     /*
@@ -342,6 +521,9 @@ public class DBStatement implements Statement
      */
     public Connection getConnection() throws SQLException
     {
+        // work done through the pool connection is tracked for the rollback
+        // on return, work done on the driver connection wouldn't be
+        if (owner != null) return owner;
         return wrappedStatement.getConnection();
     }
 
@@ -374,7 +556,15 @@ public class DBStatement implements Statement
         throws SQLException
     {
     	this.sql = sql;
-        return wrappedStatement.executeUpdate(sql, autoGeneratedKeys);
+        long starttime = beginExecute();
+        try
+        {
+            return wrappedStatement.executeUpdate(sql, autoGeneratedKeys);
+        }
+        finally
+        {
+            endExecute(starttime);
+        }
     }
 
     /*
@@ -387,7 +577,15 @@ public class DBStatement implements Statement
     {
     	this.sql = sql;
     	this.columnIndexes = columnIndexes;
-        return wrappedStatement.executeUpdate(sql, columnIndexes);
+        long starttime = beginExecute();
+        try
+        {
+            return wrappedStatement.executeUpdate(sql, columnIndexes);
+        }
+        finally
+        {
+            endExecute(starttime);
+        }
     }
 
     /*
@@ -401,7 +599,15 @@ public class DBStatement implements Statement
     {
     	this.sql = sql;
     	this.columnNames = columnNames;
-        return wrappedStatement.executeUpdate(sql, columnNames);
+        long starttime = beginExecute();
+        try
+        {
+            return wrappedStatement.executeUpdate(sql, columnNames);
+        }
+        finally
+        {
+            endExecute(starttime);
+        }
     }
 
     /*
@@ -413,7 +619,15 @@ public class DBStatement implements Statement
         throws SQLException
     {
     	this.sql = sql;
-    	return wrappedStatement.execute(sql, autoGeneratedKeys);
+    	long starttime = beginExecute();
+    	try
+    	{
+    	    return wrappedStatement.execute(sql, autoGeneratedKeys);
+    	}
+    	finally
+    	{
+    	    endExecute(starttime);
+    	}
     }
 
     /*
@@ -425,7 +639,15 @@ public class DBStatement implements Statement
     {
     	this.sql = sql;
     	this.columnIndexes = columnIndexes;
-        return wrappedStatement.execute(sql, columnIndexes);
+        long starttime = beginExecute();
+        try
+        {
+            return wrappedStatement.execute(sql, columnIndexes);
+        }
+        finally
+        {
+            endExecute(starttime);
+        }
     }
 
     /*
@@ -438,7 +660,15 @@ public class DBStatement implements Statement
     {
     	this.sql = sql;
     	this.columnNames = columnNames;
-    	return wrappedStatement.execute(sql, columnNames);
+    	long starttime = beginExecute();
+    	try
+    	{
+    	    return wrappedStatement.execute(sql, columnNames);
+    	}
+    	finally
+    	{
+    	    endExecute(starttime);
+    	}
     }
 
     /*
@@ -460,10 +690,11 @@ public class DBStatement implements Statement
 	}
 
 	public boolean isClosed() throws SQLException {
-		return wrappedStatement.isClosed();
+		return idle || wrappedStatement.isClosed();
 	}
 
 	public void setPoolable(boolean poolable) throws SQLException {
+		if (!poolable) settingsChanged = true;
 		wrappedStatement.setPoolable(poolable);
 	}
 
@@ -0,0 +1,162 @@
+package db.pool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Parsed form of an SQL with named variables: the SQL with every variable
+ * replaced by a <code>?</code> and the 1 based indexes of each variable.
+ * Instances are immutable and shared, the parse of each distinct SQL is kept
+ * in a bounded cache. Lookups take no lock, a full cache evicts an SQL not
+ * used since the previous eviction pass (second chance), an approximation of
+ * the least recently used one.
+ */
+final class NamedSql
+{
+    // distinct SQLs kept
+    private static final int MAX_CACHED = 1024;
+    private static final ConcurrentHashMap<String, CachedParse> cache =
+        new ConcurrentHashMap<String, CachedParse>();
+
+    /**
+     * Cache entry, flagged when it is used.
+     */
+    private static final class CachedParse
+    {
+        final NamedSql parsed;
+        volatile boolean referenced;
+
+        CachedParse(NamedSql parsed)
+        {
+            this.parsed = parsed;
+        }
+    }
+
+    private final String sql;
+    private final Map<String, int[]> indexes;
+    private final int parameterCount;
+
+    private NamedSql(String sql, Map<String, int[]> indexes, int parameterCount)
+    {
+        this.sql = sql;
+        this.indexes = indexes;
+        this.parameterCount = parameterCount;
+    }
+
+    /**
+     * @return the parsed form of the SQL, from the cache when it was parsed
+     *         before.
+     */
+    static NamedSql parse(String sql)
+    {
+        CachedParse cached = cache.get(sql);
+        if (cached != null)
+        {
+            // only written when it changes, a hot SQL is read without writes
+            if (!cached.referenced) cached.referenced = true;
+            return cached.parsed;
+        }
+        // a concurrent parse of the same SQL gives an equal result
+        NamedSql parsed = doParse(sql);
+        if (cache.putIfAbsent(sql, new CachedParse(parsed)) == null
+                && cache.size() > MAX_CACHED)
+            evict();
+        return parsed;
+    }
+
+    /**
+     * Removes SQLs until the cache is back to its size. An SQL used since
+     * the previous pass has its flag cleared and is skipped once.
+     */
+    private static synchronized void evict()
+    {
+        while (cache.size() > MAX_CACHED)
+        {
+            Iterator<CachedParse> itt = cache.values().iterator();
+            while (itt.hasNext())
+            {
+                CachedParse cached = itt.next();
+                if (cached.referenced)
+                {
+                    cached.referenced = false;
+                    continue;
+                }
+                itt.remove();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Assigns an index to each parameter found by the {@link SqlLexer}. JDBC
+     * <code>?</code> parameters take an index but have no name.
+     */
+    private static NamedSql doParse(String sql)
+    {
+        StringBuilder jdbcSql = new StringBuilder(sql.length());
+        Map<String, List<Integer>> found = new HashMap<String, List<Integer>>();
+        int index = 0;
+        int last = 0;
+        int start = SqlLexer.nextParameter(sql, 0);
+        while (start >= 0)
+        {
+            index++;
+            int end = SqlLexer.parameterEnd(sql, start);
+            if (sql.charAt(start) == ':')
+            {
+                String name = sql.substring(start + 1, end);
+                List<Integer> list = found.get(name);
+                if (list == null)
+                {
+                    list = new ArrayList<Integer>();
+                    found.put(name, list);
+                }
+                list.add(index);
+            }
+            jdbcSql.append(sql, last, start).append('?');
+            last = end;
+            start = SqlLexer.nextParameter(sql, end);
+        }
+        jdbcSql.append(sql, last, sql.length());
+
+        Map<String, int[]> indexes = new HashMap<String, int[]>(found.size() * 2);
+        for (Entry<String, List<Integer>> entry : found.entrySet())
+        {
+            List<Integer> list = entry.getValue();
+            int[] array = new int[list.size()];
+            for (int i = 0; i < array.length; i++)
+                array[i] = list.get(i);
+            indexes.put(entry.getKey(), array);
+        }
+        return new NamedSql(jdbcSql.toString(),
+            Collections.unmodifiableMap(indexes), index);
+    }
+
+    /**
+     * @return the SQL with the variables replaced by <code>?</code>.
+     */
+    String getSql()
+    {
+        return sql;
+    }
+
+    /**
+     * @return the variable names with their indexes, the arrays must not be
+     *         modified.
+     */
+    Map<String, int[]> getIndexes()
+    {
+        return indexes;
+    }
+
+    int getParameterCount()
+    {
+        return parameterCount;
+    }
+}
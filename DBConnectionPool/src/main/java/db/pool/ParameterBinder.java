@@ -4,12 +4,10 @@ import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
-import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Hashtable;
+import java.util.Collections;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
 
 /**
  * This class is a wrapper for {@link java.sql.PreparedStatement} and provides the ability to do named binds on SQL variables that matches the format: ':(\w+)'<br>
@@ -18,15 +16,223 @@ import java.util.regex.Pattern;
  * :var, :my_var, :var2 <br>
  * <br>
  * <b>Important:</b><br>
- * You should not have any string on your SQL that matches the pattern above and is not supposed to be a variable. Like <b>SELECT "this is not a <font color='red'>:variable</font>" FROM...</b><br>
- * this will break the index and give you unwanted results while binding values.
+ * Text in string literals, quoted identifiers and comments is never taken as a variable, neither are the '::' cast and ':=' assignment operators.
+ * A '?' on the SQL is a JDBC parameter and takes an index like a variable does.
  */
 public class ParameterBinder
 {
+    // largest power of two an int holds
+    private static final int MAX_BUCKET_SIZE = 1 << 30;
 
-    private static final String REGEX_PATTERN = "\\:[\\w]*(?=([^'\\\\]*(\\\\.|'([^'\\\\]*\\\\.)*[^'\\\\]*'))*[^']*$)";
     private PreparedStatement ps = null;
-    private Hashtable<String, ArrayList<Integer>> bindTable = new Hashtable<String, ArrayList<Integer>>();
+    // shared with every binder of the same SQL, must not be modified
+    private Map<String, int[]> bindTable = Collections.emptyMap();
+    private NamedSql parsed;
+
+    /**
+     * Precompiled reference to a variable, obtained once with {@link ParameterBinder#getHandle(String)} and valid for every binder of the same SQL. Binding through a handle doesn't look up the
+     * variable name.
+     */
+    public static final class ParameterHandle
+    {
+	private final NamedSql sql;
+	private final String name;
+	private final int[] indexes;
+
+	private ParameterHandle(NamedSql sql, String name, int[] indexes)
+	{
+	    this.sql = sql;
+	    this.name = name;
+	    this.indexes = indexes;
+	}
+
+	public String getName()
+	{
+	    return name;
+	}
+    }
+
+    /**
+     * @return the handle of the variable on the SQL of the last #prepareStatement call
+     * @throws SQLException
+     *             if there is no such variable
+     */
+    public ParameterHandle getHandle(String parameter) throws SQLException
+    {
+	return new ParameterHandle(parsed, parameter, indexes(parameter));
+    }
+
+    private int[] indexes(String parameter) throws SQLException
+    {
+	int[] indexes = bindTable.get(parameter);
+	if (indexes == null)
+	    throw new SQLException("Parameter '" + parameter + "' not found.");
+	return indexes;
+    }
+
+    private int[] indexes(ParameterHandle handle) throws SQLException
+    {
+	// the parse may have been dropped from the cache, compare the SQL then
+	if (handle.sql != parsed && (parsed == null || !handle.sql.getSql().equals(parsed.getSql())))
+	    throw new SQLException("Parameter handle '" + handle.name + "' belongs to another SQL.");
+	return handle.indexes;
+    }
+
+    /**
+     * Binds an int value to the specified variable name
+     * 
+     * @param parameter
+     *            The SQL variable name
+     * @param value
+     *            The int value being binded
+     * @throws SQLException
+     */
+    public void setInt(String parameter, int value) throws SQLException
+    {
+	for (int index : indexes(parameter))
+	    ps.setInt(index, value);
+    }
+
+    /**
+     * Binds a long value to the specified variable name
+     * 
+     * @param parameter
+     *            The SQL variable name
+     * @param value
+     *            The long value being binded
+     * @throws SQLException
+     */
+    public void setLong(String parameter, long value) throws SQLException
+    {
+	for (int index : indexes(parameter))
+	    ps.setLong(index, value);
+    }
+
+    /**
+     * Binds a double value to the specified variable name
+     * 
+     * @param parameter
+     *            The SQL variable name
+     * @param value
+     *            The double value being binded
+     * @throws SQLException
+     */
+    public void setDouble(String parameter, double value) throws SQLException
+    {
+	for (int index : indexes(parameter))
+	    ps.setDouble(index, value);
+    }
+
+    /**
+     * Binds a boolean value to the specified variable name
+     * 
+     * @param parameter
+     *            The SQL variable name
+     * @param value
+     *            The boolean value being binded
+     * @throws SQLException
+     */
+    public void setBoolean(String parameter, boolean value) throws SQLException
+    {
+	for (int index : indexes(parameter))
+	    ps.setBoolean(index, value);
+    }
+
+    /**
+     * Binds an int value to the variable of the handle
+     * 
+     * @param handle
+     *            The handle of the SQL variable
+     * @param value
+     *            The int value being binded
+     * @throws SQLException
+     */
+    public void setInt(ParameterHandle handle, int value) throws SQLException
+    {
+	int[] indexes = indexes(handle);
+	for (int i = 0; i < indexes.length; i++)
+	    ps.setInt(indexes[i], value);
+    }
+
+    /**
+     * Binds a long value to the variable of the handle
+     * 
+     * @param handle
+     *            The handle of the SQL variable
+     * @param value
+     *            The long value being binded
+     * @throws SQLException
+     */
+    public void setLong(ParameterHandle handle, long value) throws SQLException
+    {
+	int[] indexes = indexes(handle);
+	for (int i = 0; i < indexes.length; i++)
+	    ps.setLong(indexes[i], value);
+    }
+
+    /**
+     * Binds a double value to the variable of the handle
+     * 
+     * @param handle
+     *            The handle of the SQL variable
+     * @param value
+     *            The double value being binded
+     * @throws SQLException
+     */
+    public void setDouble(ParameterHandle handle, double value) throws SQLException
+    {
+	int[] indexes = indexes(handle);
+	for (int i = 0; i < indexes.length; i++)
+	    ps.setDouble(indexes[i], value);
+    }
+
+    /**
+     * Binds a boolean value to the variable of the handle
+     * 
+     * @param handle
+     *            The handle of the SQL variable
+     * @param value
+     *            The boolean value being binded
+     * @throws SQLException
+     */
+    public void setBoolean(ParameterHandle handle, boolean value) throws SQLException
+    {
+	int[] indexes = indexes(handle);
+	for (int i = 0; i < indexes.length; i++)
+	    ps.setBoolean(indexes[i], value);
+    }
+
+    /**
+     * Binds a String value to the variable of the handle
+     * 
+     * @param handle
+     *            The handle of the SQL variable
+     * @param value
+     *            The String value being binded
+     * @throws SQLException
+     */
+    public void setString(ParameterHandle handle, String value) throws SQLException
+    {
+	int[] indexes = indexes(handle);
+	for (int i = 0; i < indexes.length; i++)
+	    ps.setString(indexes[i], value);
+    }
+
+    /**
+     * Sets the value NULL to the variable of the handle
+     * 
+     * @param handle
+     *            The handle of the SQL variable
+     * @param sqlType
+     *            The SQL type code defined in java.sql.Types
+     * @throws SQLException
+     */
+    public void setNull(ParameterHandle handle, int sqlType) throws SQLException
+    {
+	int[] indexes = indexes(handle);
+	for (int i = 0; i < indexes.length; i++)
+	    ps.setNull(indexes[i], sqlType);
+    }
 
     /**
      * Binds a String value to the specified variable name
@@ -39,10 +245,9 @@ public class ParameterBinder
      */
     public void setString(String parameter, String value) throws SQLException
     {
-	if (!bindTable.containsKey(parameter))
-	    throw new SQLException("Parameter '" + parameter + "' not found.");
+	int[] indexes = indexes(parameter);
 
-	for (int index : bindTable.get(parameter))
+	for (int index : indexes)
 	    ps.setString(index, value);
 
     }
@@ -63,10 +268,7 @@ public class ParameterBinder
 	for (int index = 1; index <= maxValue; index++)
 	{
 	    String parameter = parameterSuffix + "_" + index;
-	    int arrayIndex = bindTable.get(parameter).get(0);
-
-	    if (!bindTable.containsKey(parameter))
-		throw new SQLException("Parameter '" + parameter + "' not found.");
+	    int arrayIndex = indexes(parameter)[0];
 
 	    if (index <= valueList.size())
 		ps.setString(arrayIndex, valueList.get(index - 1));
@@ -75,6 +277,75 @@ public class ParameterBinder
 	}
     }
 
+    /**
+     * Binds a list of String values to the variables generated by {@link #getBucketedVariableList(String, int)} for the same suffix. The variables left over are bound to the last value of the
+     * list, which doesn't change the result of an IN or NOT IN list. An empty list binds NULL: <code>x IN (NULL)</code> matches no row,
+     * and neither does <code>x NOT IN (NULL)</code>, so a NOT IN with an empty list has to be left out of the SQL by the caller.
+     * 
+     * @param parameterSuffix
+     *            The SQL variable suffix
+     * @param valueList
+     *            The String values being binded
+     * @throws SQLException
+     *             if the SQL has fewer variables than values
+     */
+    public void setStringList(String parameterSuffix, List<String> valueList) throws SQLException
+    {
+	int size = getVariableCount(parameterSuffix, valueList.size());
+	for (int index = 1; index <= size; index++)
+	{
+	    int[] indexes = indexes(parameterSuffix + "_" + index);
+	    if (valueList.isEmpty())
+		for (int i : indexes)
+		    ps.setNull(i, java.sql.Types.VARCHAR);
+	    else
+	    {
+		String value = valueList.get(Math.min(index, valueList.size()) - 1);
+		for (int i : indexes)
+		    ps.setString(i, value);
+	    }
+	}
+    }
+
+    /**
+     * Binds a list of values to the variables generated by {@link #getBucketedVariableList(String, int)} for the same suffix, see {@link #setStringList(String, List)}.
+     * 
+     * @param parameterSuffix
+     *            The SQL variable suffix
+     * @param valueList
+     *            The values being binded
+     * @throws SQLException
+     *             if the SQL has fewer variables than values
+     */
+    public void setObjectList(String parameterSuffix, List<?> valueList) throws SQLException
+    {
+	int size = getVariableCount(parameterSuffix, valueList.size());
+	for (int index = 1; index <= size; index++)
+	{
+	    int[] indexes = indexes(parameterSuffix + "_" + index);
+	    Object value = valueList.isEmpty() ? null : valueList.get(Math.min(index, valueList.size()) - 1);
+	    if (value == null)
+		for (int i : indexes)
+		    ps.setNull(i, java.sql.Types.OTHER);
+	    else
+		for (int i : indexes)
+		    ps.setObject(i, value);
+	}
+    }
+
+    /**
+     * @return the number of variables '<suffix>_1 ... <suffix>_n' on the SQL, which is at least the given minimum
+     */
+    private int getVariableCount(String parameterSuffix, int minimum) throws SQLException
+    {
+	int count = 0;
+	while (bindTable.containsKey(parameterSuffix + "_" + (count + 1)))
+	    count++;
+	if (count < Math.max(minimum, 1))
+	    throw new SQLException("Parameter '" + parameterSuffix + "_" + (count + 1) + "' not found.");
+	return count;
+    }
+
     /**
      * Binds a Integer value to the specified variable name
      * 
@@ -86,14 +357,13 @@ public class ParameterBinder
      */
     public void setInt(String parameter, Integer value) throws SQLException
     {
-	if (!bindTable.containsKey(parameter))
-	    throw new SQLException("Parameter '" + parameter + "' not found.");
+	int[] indexes = indexes(parameter);
 
 	if (value != null)
-	    for (int index : bindTable.get(parameter))
+	    for (int index : indexes)
 		ps.setInt(index, value);
 	else
-	    for (int index : bindTable.get(parameter))
+	    for (int index : indexes)
 		ps.setNull(index, java.sql.Types.INTEGER);
     }
 
@@ -108,14 +378,13 @@ public class ParameterBinder
      */
     public void setDate(String parameter, java.sql.Date value) throws SQLException
     {
-	if (!bindTable.containsKey(parameter))
-	    throw new SQLException("Parameter '" + parameter + "' not found.");
+	int[] indexes = indexes(parameter);
 
 	if (value != null)
-	    for (int index : bindTable.get(parameter))
+	    for (int index : indexes)
 		ps.setDate(index, value);
 	else
-	    for (int index : bindTable.get(parameter))
+	    for (int index : indexes)
 		ps.setNull(index, java.sql.Types.DATE);
     }
 
@@ -134,14 +403,13 @@ public class ParameterBinder
      */
     public void setDate(String parameter, java.sql.Date value, Calendar cal) throws SQLException
     {
-	if (!bindTable.containsKey(parameter))
-	    throw new SQLException("Parameter '" + parameter + "' not found.");
+	int[] indexes = indexes(parameter);
 
 	if (value != null)
-	    for (int index : bindTable.get(parameter))
+	    for (int index : indexes)
 		ps.setDate(index, value, cal);
 	else
-	    for (int index : bindTable.get(parameter))
+	    for (int index : indexes)
 		ps.setNull(index, java.sql.Types.DATE);
     }
 
@@ -156,14 +424,13 @@ public class ParameterBinder
      */
     public void setDate(String parameter, Calendar value) throws SQLException
     {
-	if (!bindTable.containsKey(parameter))
-	    throw new SQLException("Parameter '" + parameter + "' not found.");
+	int[] indexes = indexes(parameter);
 
 	if (value != null)
-	    for (int index : bindTable.get(parameter))
+	    for (int index : indexes)
 		ps.setDate(index, new java.sql.Date(value.getTime().getTime()));
 	else
-	    for (int index : bindTable.get(parameter))
+	    for (int index : indexes)
 		ps.setNull(index, java.sql.Types.DATE);
     }
 
@@ -176,19 +443,17 @@ public class ParameterBinder
      */
     public void setNull(String parameter) throws SQLException
     {
-	if (!bindTable.containsKey(parameter))
-	    throw new SQLException("Parameter '" + parameter + "' not found.");
+	int[] indexes = indexes(parameter);
 
-	for (int index : bindTable.get(parameter))
+	for (int index : indexes)
 	    ps.setNull(index, java.sql.Types.NULL);
     }
     
     public void setNullDate(String parameter) throws SQLException
     {
-    if (!bindTable.containsKey(parameter))
-        throw new SQLException("Parameter '" + parameter + "' not found.");
+    int[] indexes = indexes(parameter);
 
-    for (int index : bindTable.get(parameter))
+    for (int index : indexes)
         ps.setNull(index, java.sql.Types.DATE);
     }
 
@@ -204,78 +469,56 @@ public class ParameterBinder
     }
 
     /**
-     * This method reads the SQL provided on #prepareStatement methods and assign an index to each variable every time it matches the regEx.
+     * Looks up the parsed form of the SQL provided on #prepareStatement methods, the SQL is only parsed the first time it is seen.
+     * 
+     * @return the SQL to prepare, with the variables replaced by '?'
      */
-    private void buildBindTable(String sql)
+    private String buildBindTable(String sql)
     {
-	Pattern pattern = Pattern.compile(REGEX_PATTERN, Pattern.MULTILINE);
-
-	Matcher matcher = pattern.matcher(sql);
-
-	// Starts the index to count every time it matches a SQL variable
-	int index = 1;
-
-	// Finds all the matches.
-	while (matcher.find())
-	{
-	    // Assgin the index to the matched variable
-	    addIndex(matcher.group().substring(1), index);
-	    index++;
-	}
-    }
-
-    void addIndex(String name, int index)
-    {
-	ArrayList<Integer> list = bindTable.get(name);
-
-	if (list == null)
-	{
-	    list = new ArrayList<Integer>();
-	    bindTable.put(name, list);
-	}
-
-	list.add(index);
+	parsed = NamedSql.parse(sql);
+	bindTable = parsed.getIndexes();
+	return parsed.getSql();
     }
 
     public PreparedStatement prepareStatement(String sql, Connection cnn) throws SQLException
     {
-	ps = cnn.prepareStatement(sql);
-	buildBindTable(sql);
+	String jdbcSql = buildBindTable(sql);
+	ps = cnn.prepareStatement(jdbcSql);
 	return ps;
     }
 
     public PreparedStatement prepareStatement(String sql, Connection cnn, int autoGeneratedKeys) throws SQLException
     {
-	ps = cnn.prepareStatement(sql, autoGeneratedKeys);
-	buildBindTable(sql);
+	String jdbcSql = buildBindTable(sql);
+	ps = cnn.prepareStatement(jdbcSql, autoGeneratedKeys);
 	return ps;
     }
 
     public PreparedStatement prepareStatement(String sql, Connection cnn, int[] columnIndexes) throws SQLException
     {
-	ps = cnn.prepareStatement(sql, columnIndexes);
-	buildBindTable(sql);
+	String jdbcSql = buildBindTable(sql);
+	ps = cnn.prepareStatement(jdbcSql, columnIndexes);
 	return ps;
     }
 
     public PreparedStatement prepareStatement(String sql, Connection cnn, String[] columnNames) throws SQLException
     {
-	ps = cnn.prepareStatement(sql, columnNames);
-	buildBindTable(sql);
+	String jdbcSql = buildBindTable(sql);
+	ps = cnn.prepareStatement(jdbcSql, columnNames);
 	return ps;
     }
 
     public PreparedStatement prepareStatement(String sql, Connection cnn, int resultSetType, int resultSetConcurrency) throws SQLException
     {
-	ps = cnn.prepareStatement(sql, resultSetType, resultSetConcurrency);
-	buildBindTable(sql);
+	String jdbcSql = buildBindTable(sql);
+	ps = cnn.prepareStatement(jdbcSql, resultSetType, resultSetConcurrency);
 	return ps;
     }
 
     public PreparedStatement prepareStatement(String sql, Connection cnn, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException
     {
-	ps = cnn.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
-	buildBindTable(sql);
+	String jdbcSql = buildBindTable(sql);
+	ps = cnn.prepareStatement(jdbcSql, resultSetType, resultSetConcurrency, resultSetHoldability);
 	return ps;
     }
 
@@ -290,14 +533,13 @@ public class ParameterBinder
      */
     public void setDouble(String parameter, Double value) throws SQLException
     {
-	if (!bindTable.containsKey(parameter))
-	    throw new SQLException("Parameter '" + parameter + "' not found.");
+	int[] indexes = indexes(parameter);
 
 	if (value != null)
-	    for (int index : bindTable.get(parameter))
+	    for (int index : indexes)
 		ps.setDouble(index, value);
 	else
-	    for (int index : bindTable.get(parameter))
+	    for (int index : indexes)
 		ps.setNull(index, java.sql.Types.DOUBLE);
     }
 
@@ -312,14 +554,13 @@ public class ParameterBinder
      */
     public void setLong(String parameter, Long value) throws SQLException
     {
-	if (!bindTable.containsKey(parameter))
-	    throw new SQLException("Parameter '" + parameter + "' not found.");
+	int[] indexes = indexes(parameter);
 
 	if (value != null)
-	    for (int index : bindTable.get(parameter))
+	    for (int index : indexes)
 		ps.setLong(index, value);
 	else
-	    for (int index : bindTable.get(parameter))
+	    for (int index : indexes)
 		ps.setNull(index, java.sql.Types.DOUBLE);
     }
 
@@ -334,28 +575,26 @@ public class ParameterBinder
      */
     public void setObject(String parameter, Object value) throws SQLException
     {
-	if (!bindTable.containsKey(parameter))
-	    throw new SQLException("Parameter '" + parameter + "' not found.");
+	int[] indexes = indexes(parameter);
 
 	if (value != null)
-	    for (int index : bindTable.get(parameter))
+	    for (int index : indexes)
 		ps.setObject(index, value);
 	else
-	    for (int index : bindTable.get(parameter))
+	    for (int index : indexes)
 		ps.setNull(index, java.sql.Types.OTHER);
     }
 
     public void setBigDecimal(String parameter, BigDecimal value)
 	    throws SQLException
     {
-	if (!bindTable.containsKey(parameter))
-	    throw new SQLException("Parameter '" + parameter + "' not found.");
+	int[] indexes = indexes(parameter);
 
 	if (value != null)
-	    for (int index : bindTable.get(parameter))
+	    for (int index : indexes)
 		ps.setBigDecimal(index, value);
 	else
-	    for (int index : bindTable.get(parameter))
+	    for (int index : indexes)
 		ps.setNull(index, java.sql.Types.BIGINT);
 
     }
@@ -372,14 +611,13 @@ public class ParameterBinder
      */
     public void setTimestamp(String parameter, java.sql.Timestamp value) throws SQLException
     {
-	if (!bindTable.containsKey(parameter))
-	    throw new SQLException("Parameter '" + parameter + "' not found.");
+	int[] indexes = indexes(parameter);
 
 	if (value != null)
-	    for (int index : bindTable.get(parameter))
+	    for (int index : indexes)
 		ps.setTimestamp(index, value);
 	else
-	    for (int index : bindTable.get(parameter))
+	    for (int index : indexes)
 		ps.setNull(index, java.sql.Types.TIMESTAMP);
     }
 
@@ -398,14 +636,13 @@ public class ParameterBinder
      */
     public void setTimestamp(String parameter, java.sql.Timestamp value, Calendar cal) throws SQLException
     {
-	if (!bindTable.containsKey(parameter))
-	    throw new SQLException("Parameter '" + parameter + "' not found.");
+	int[] indexes = indexes(parameter);
 
 	if (value != null)
-	    for (int index : bindTable.get(parameter))
+	    for (int index : indexes)
 		ps.setTimestamp(index, value, cal);
 	else
-	    for (int index : bindTable.get(parameter))
+	    for (int index : indexes)
 		ps.setNull(index, java.sql.Types.TIMESTAMP);
     }
 
@@ -430,4 +667,33 @@ public class ParameterBinder
 
 	return resultList.substring(0, resultList.length() - 2);
     }
+
+    /**
+     * Same as {@link #getVariableList(String, int)} but the size is rounded up to the next power of two, so lists of any length only produce a few distinct SQL statements. Bind the values with
+     * {@link #setStringList(String, List)} or {@link #setObjectList(String, List)}, which fill up the extra variables.
+     * 
+     * @param suffix
+     * @param size
+     *            the number of values of the list, an empty list gets one variable
+     * @return
+     */
+    public String getBucketedVariableList(String suffix, int size)
+    {
+	return getVariableList(suffix, getBucketSize(size));
+    }
+
+    /**
+     * @return the number of variables used for a list of the given size: 1, 2, 4, 8, 16 ...
+     * @throws IllegalArgumentException
+     *             if the list has more than 2^30 values
+     */
+    public static int getBucketSize(int size)
+    {
+	if (size <= 1)
+	    return 1;
+	if (size > MAX_BUCKET_SIZE)
+	    throw new IllegalArgumentException("A list of " + size + " values is too large to be bound");
+	int bucket = Integer.highestOneBit(size);
+	return bucket == size ? size : bucket << 1;
+    }
 }
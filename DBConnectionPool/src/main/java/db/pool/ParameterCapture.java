@@ -0,0 +1,209 @@
+package db.pool;
+
+import java.util.Arrays;
+
+/**
+ * Parameters bound to a prepared statement, kept for the audit log. Values
+ * are stored by parameter index in flat arrays, primitives without boxing,
+ * and only turned into text when a log line is written.
+ */
+class ParameterCapture
+{
+    private static final byte UNSET = 0;
+    private static final byte BOOLEAN = 1;
+    private static final byte BYTE = 2;
+    private static final byte SHORT = 3;
+    private static final byte INT = 4;
+    private static final byte LONG = 5;
+    private static final byte FLOAT = 6;
+    private static final byte DOUBLE = 7;
+    private static final byte OBJECT = 8;
+
+    private byte[] types;
+    private long[] primitives;
+    private Object[] objects;
+    // highest parameter index set so far
+    private int count;
+
+    ParameterCapture(int expectedCount)
+    {
+        int size = Math.max(expectedCount, 1);
+        types = new byte[size];
+        primitives = new long[size];
+        objects = new Object[size];
+    }
+
+    /**
+     * Overwrites this capture with the parameters of the other one, reusing
+     * the arrays when they are large enough.
+     */
+    void copyFrom(ParameterCapture other)
+    {
+        clear();
+        if (types.length < other.count)
+        {
+            types = new byte[other.count];
+            primitives = new long[other.count];
+            objects = new Object[other.count];
+        }
+        System.arraycopy(other.types, 0, types, 0, other.count);
+        System.arraycopy(other.primitives, 0, primitives, 0, other.count);
+        System.arraycopy(other.objects, 0, objects, 0, other.count);
+        count = other.count;
+    }
+
+    /**
+     * @return a rough size in bytes of the captured values.
+     */
+    long estimateBytes()
+    {
+        long bytes = 0;
+        for (int i = 0; i < count; i++)
+        {
+            switch (types[i])
+            {
+                case UNSET:
+                    break;
+                case OBJECT:
+                    Object value = objects[i];
+                    if (value instanceof CharSequence)
+                        bytes += 2L * ((CharSequence) value).length();
+                    else if (value instanceof byte[])
+                        bytes += ((byte[]) value).length;
+                    else if (value != null)
+                        bytes += 16;
+                    break;
+                default:
+                    bytes += 8;
+            }
+        }
+        return bytes;
+    }
+
+    int size()
+    {
+        return count;
+    }
+
+    void setBoolean(int index, boolean value)
+    {
+        setPrimitive(index, BOOLEAN, value ? 1 : 0);
+    }
+
+    void setByte(int index, byte value)
+    {
+        setPrimitive(index, BYTE, value);
+    }
+
+    void setShort(int index, short value)
+    {
+        setPrimitive(index, SHORT, value);
+    }
+
+    void setInt(int index, int value)
+    {
+        setPrimitive(index, INT, value);
+    }
+
+    void setLong(int index, long value)
+    {
+        setPrimitive(index, LONG, value);
+    }
+
+    void setFloat(int index, float value)
+    {
+        setPrimitive(index, FLOAT, Float.floatToRawIntBits(value));
+    }
+
+    void setDouble(int index, double value)
+    {
+        setPrimitive(index, DOUBLE, Double.doubleToRawLongBits(value));
+    }
+
+    /**
+     * Stores the value as is, it is rendered with <code>String.valueOf</code>.
+     */
+    void setObject(int index, Object value)
+    {
+        int slot = slot(index);
+        if (slot < 0) return;
+        types[slot] = OBJECT;
+        objects[slot] = value;
+    }
+
+    void clear()
+    {
+        Arrays.fill(types, 0, count, UNSET);
+        Arrays.fill(objects, 0, count, null);
+        count = 0;
+    }
+
+    private void setPrimitive(int index, byte type, long value)
+    {
+        int slot = slot(index);
+        if (slot < 0) return;
+        types[slot] = type;
+        primitives[slot] = value;
+        objects[slot] = null;
+    }
+
+    private int slot(int index)
+    {
+        int slot = index - 1;
+        if (slot < 0) return -1;
+        if (slot >= types.length)
+        {
+            int size = Math.max(slot + 1, types.length * 2);
+            types = Arrays.copyOf(types, size);
+            primitives = Arrays.copyOf(primitives, size);
+            objects = Arrays.copyOf(objects, size);
+        }
+        if (slot >= count) count = slot + 1;
+        return slot;
+    }
+
+    /**
+     * Appends the parameters as <code>{[0]value,[1]value}</code>.
+     */
+    void appendTo(StringBuffer buffer)
+    {
+        buffer.append("\n{");
+        for (int i = 0; i < count; i++)
+        {
+            if (i > 0) buffer.append(",");
+            buffer.append("[");
+            buffer.append(i);
+            buffer.append("]");
+            appendValue(buffer, i);
+        }
+        buffer.append("}");
+    }
+
+    private void appendValue(StringBuffer buffer, int slot)
+    {
+        long value = primitives[slot];
+        switch (types[slot])
+        {
+            case BOOLEAN:
+                buffer.append(value != 0);
+                break;
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+                buffer.append(value);
+                break;
+            case FLOAT:
+                buffer.append(Float.intBitsToFloat((int) value));
+                break;
+            case DOUBLE:
+                buffer.append(Double.longBitsToDouble(value));
+                break;
+            case OBJECT:
+                buffer.append(String.valueOf(objects[slot]));
+                break;
+            default:
+                buffer.append("null");
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package db.pool;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Edge triggered utilization alarm of a connection pool. An alarm is logged
+ * when the usage crosses the warning or error level and cleared, with a
+ * summary of the episode, when the usage drops back below the warning level.
+ * While the usage stays on the same level nothing is logged, so the check is
+ * cheap enough to run on every borrow and return.
+ * 
+ * Alarms are logged at most once per minimum interval, crossings in between
+ * are counted and reported with the next alarm. A level that couldn't be
+ * logged when it was reached is logged by a later update once the interval
+ * has passed, if the usage is still on it.
+ */
+class PoolAlarm
+{
+    static final int LEVEL_NONE = 0;
+    static final int LEVEL_WARNING = 1;
+    static final int LEVEL_ERROR = 2;
+
+    private final String poolUrl;
+    private final Logger logger;
+    private final AtomicInteger level = new AtomicInteger(LEVEL_NONE);
+    private final AtomicInteger peakInUse = new AtomicInteger();
+    private final AtomicInteger suppressed = new AtomicInteger();
+    private volatile long episodeStart;
+    private volatile long lastFired;
+    // highest level logged in the current episode, LEVEL_NONE if none was
+    private volatile int reportedLevel;
+    private volatile long minInterval;
+
+    PoolAlarm(String poolUrl, Logger logger, long minInterval)
+    {
+        this.poolUrl = poolUrl;
+        this.logger = logger;
+        this.minInterval = minInterval;
+    }
+
+    void setMinInterval(long minInterval)
+    {
+        this.minInterval = minInterval;
+    }
+
+    long getMinInterval()
+    {
+        return minInterval;
+    }
+
+    int getLevel()
+    {
+        return level.get();
+    }
+
+    /**
+     * Evaluates the current usage against the alarm levels.
+     */
+    void update(int inUse, int poolSize, int warningLevel, int errorLevel)
+    {
+        double usage = ((double) inUse / poolSize) * 100;
+        int newLevel = usage >= errorLevel ? LEVEL_ERROR
+            : usage >= warningLevel ? LEVEL_WARNING : LEVEL_NONE;
+        int current = level.get();
+        if (current != LEVEL_NONE) trackPeak(inUse);
+        if (newLevel == current)
+        {
+            // a level suppressed by the minimum interval is logged late
+            if (current > reportedLevel
+                    && System.currentTimeMillis() - lastFired >= minInterval)
+                fire(current, inUse, poolSize, warningLevel, errorLevel, false);
+            return;
+        }
+        if (!level.compareAndSet(current, newLevel)) return;
+
+        long now = System.currentTimeMillis();
+        if (current == LEVEL_NONE)
+        {
+            episodeStart = now;
+            peakInUse.set(inUse);
+            reportedLevel = LEVEL_NONE;
+        }
+        if (newLevel == LEVEL_NONE)
+        {
+            if (reportedLevel != LEVEL_NONE)
+                logger.info("[CLEARED] Pool [" + poolUrl
+                    + "] usage is back below Warning alert level of "
+                    + warningLevel + "% after " + (now - episodeStart)
+                    + "ms. Peak usage was " + peakInUse.get()
+                    + " connections out of " + poolSize + ".");
+            return;
+        }
+        if (newLevel < current) return;
+        fire(newLevel, inUse, poolSize, warningLevel, errorLevel, true);
+    }
+
+    /**
+     * Logs the alarm of a level unless one was logged less than the minimum
+     * interval ago, in which case a crossing is counted as suppressed.
+     */
+    private synchronized void fire(int newLevel, int inUse, int poolSize,
+        int warningLevel, int errorLevel, boolean crossing)
+    {
+        long now = System.currentTimeMillis();
+        if (newLevel <= reportedLevel || level.get() != newLevel) return;
+        if (now - lastFired < minInterval)
+        {
+            if (crossing) suppressed.incrementAndGet();
+            return;
+        }
+        lastFired = now;
+        reportedLevel = newLevel;
+        int skipped = suppressed.getAndSet(0);
+        // a late alarm reports the crossing that was suppressed
+        if (!crossing && skipped > 0) skipped--;
+        String suffix = skipped > 0 ? " " + skipped
+            + " alert(s) suppressed since the last one." : "";
+        if (newLevel == LEVEL_ERROR)
+            logger.error("[ERROR] Pool [" + poolUrl
+                + "] reached Error alert level of " + errorLevel + "%.("
+                + inUse + " connections out of " + poolSize
+                + " are in use.)" + suffix);
+        else
+            logger.warn("[WARNING] Pool [" + poolUrl
+                + "] reached Warning alert level of " + warningLevel + "%.("
+                + inUse + " connections out of " + poolSize
+                + " are in use.)" + suffix);
+    }
+
+    private void trackPeak(int inUse)
+    {
+        int peak;
+        while (inUse > (peak = peakInUse.get()))
+        {
+            if (peakInUse.compareAndSet(peak, inUse)) return;
+        }
+    }
+}
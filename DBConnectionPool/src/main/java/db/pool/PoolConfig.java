@@ -0,0 +1,231 @@
+package db.pool;
+
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Typed snapshot of the pool configuration. The properties are parsed once
+ * when the snapshot is built, the pool and the statements read the final
+ * fields so no <code>Properties</code> lookup happens on a borrow or an
+ * execute. A reload builds a new snapshot and swaps it in, see
+ * {@link PoolProperties#reload()}. A value that isn't a number is logged and
+ * replaced by the default of the setting.
+ */
+final class PoolConfig
+{
+    static final String ENABLE_DB_CONNECTION_TRACKER = "EnableDBConnectionTracker";
+    static final String DB_CONNECTION_TRACKER_SAMPLE_RATE = "DBConnectionTrackerSampleRate";
+    static final String DB_CONNECTION_TRACKER_MIN_HOLD_TIME = "DBConnectionTrackerMinHoldTime";
+    static final String DB_CONNECTION_WAIT_TIME = "DBConnectionWaitTime";
+    static final String DB_CONNECTION_WAIT_WARNING_THRESHOLD = "DBConnectionWaitWarningThreshold";
+    static final String DB_CONNECTION_POOL_MODE = "DBConnectionPoolMode";
+    static final String DB_CONNECTION_SPARE_COUNT = "DBConnectionSpareCount";
+    static final String DATA_SOURCE_ALARM = "DataSourceAlarm";
+    static final String DATA_SOURCE_ALARM_INTERVAL = "DataSourceAlarmInterval";
+    static final String DB_CONNECTION_LEAK_THRESHOLD = "DBConnectionLeakThreshold";
+    static final String DB_CONNECTION_LEAK_CHECK_INTERVAL = "DBConnectionLeakCheckInterval";
+    static final String DB_CONNECTION_LEAK_RECLAIM = "DBConnectionLeakReclaim";
+    static final String DB_QUERY_TIMEOUT = "DbQueryTimeout";
+    static final String DB_STATEMENT_WARNING_THRESHOLD = "DBStatementWarningThreshold";
+    static final String ENABLE_AUDIT = "EnableAudit";
+    static final String DB_STATEMENT_AUDIT_PROXY = "DBStatementAuditProxy";
+    static final String DB_STATEMENT_AUDIT_BATCH_ROWS = "DBStatementAuditBatchRows";
+    static final String DB_STATEMENT_CACHE_SIZE = "DBStatementCacheSize";
+    static final String DB_CONNECTION_IDLE_TIMEOUT = "DBConnectionIdleTimeout";
+    static final String DB_CONNECTION_SWEEP_INTERVAL = "DBConnectionSweepInterval";
+    static final String DB_CONNECTION_MAX_LIFETIME = "DBConnectionMaxLifetime";
+    static final String DB_CONNECTION_BREAKER_THRESHOLD = "DBConnectionBreakerThreshold";
+    static final String DB_CONNECTION_BREAKER_RETRY_INTERVAL = "DBConnectionBreakerRetryInterval";
+    static final String DB_CONNECTION_BREAKER_MAX_RETRY_INTERVAL = "DBConnectionBreakerMaxRetryInterval";
+    static final String DB_CONNECTION_VALIDATION = "DBConnectionValidation";
+    static final String DB_CONNECTION_VALIDATION_IDLE_TIME = "DBConnectionValidationIdleTime";
+    static final String DB_CONNECTION_VALIDATION_TIMEOUT = "DBConnectionValidationTimeout";
+    static final String DB_CONNECTION_VALIDATION_IS_VALID = "DBConnectionValidationIsValid";
+
+    static final int DEFAULT_WAIT_TIME = 5000;
+    static final int DEFAULT_WAIT_WARNING_THRESHOLD = 100;
+    static final int DEFAULT_ALARM_INTERVAL = 60000;
+    static final int DEFAULT_LEAK_CHECK_INTERVAL = 5000;
+    static final int DEFAULT_QUERY_TIMEOUT = 30;
+    static final int DEFAULT_STATEMENT_WARNING_THRESHOLD = 10000;
+    static final int DEFAULT_AUDIT_BATCH_ROWS = 5;
+    static final int DEFAULT_IDLE_TIMEOUT = 300000;
+    static final int DEFAULT_SWEEP_INTERVAL = 180000;
+    static final int DEFAULT_BREAKER_THRESHOLD = 5;
+    static final int DEFAULT_BREAKER_RETRY_INTERVAL = 1000;
+    static final int DEFAULT_BREAKER_MAX_RETRY_INTERVAL = 30000;
+    static final int DEFAULT_VALIDATION_IDLE_TIME = 5000;
+    static final int DEFAULT_VALIDATION_TIMEOUT = 5;
+
+    static final String LEGACY_MODE = "legacy";
+
+    private static final Pattern ALARM_PATTERN = Pattern.compile(
+        "(Warning=)(\\d+)(%,Error=)(\\d+)(%)", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    final boolean trackerEnabled;
+    final int trackerSampleRate;
+    final long trackerMinHoldTime;
+    final long waitTime;
+    // waits for a connection shorter than this are not logged
+    final long waitWarningThreshold;
+    final boolean legacyMode;
+    final int spareCount;
+    // raw DataSourceAlarm value, null when not configured
+    final String alarmProperty;
+    // parsed alarm levels, -1 when DataSourceAlarm is missing or invalid
+    final int alarmWarningLevel;
+    final int alarmErrorLevel;
+    final long alarmInterval;
+    final long leakThreshold;
+    final long leakCheckInterval;
+    final boolean leakReclaim;
+    final int queryTimeout;
+    final long statementWarningThreshold;
+    final boolean auditEnabled;
+    // audit through the reflective LogHandler1 proxy instead of the statements
+    final boolean auditProxy;
+    // batch rows kept for the audit log at each end of a batch
+    final int auditBatchRows;
+    final int statementCacheSize;
+    final long idleTimeout;
+    final long sweepInterval;
+    final long maxLifetime;
+    final int breakerThreshold;
+    final long breakerRetryInterval;
+    final long breakerMaxRetryInterval;
+    // one of the DBConnectionPool.VALIDATE_ constants
+    final int validation;
+    final long validationIdleTime;
+    final int validationTimeout;
+    final boolean validationIsValid;
+
+    PoolConfig(Properties properties)
+    {
+        trackerEnabled = "true".equals(get(properties, ENABLE_DB_CONNECTION_TRACKER));
+        trackerSampleRate = getInt(properties, DB_CONNECTION_TRACKER_SAMPLE_RATE, 1);
+        trackerMinHoldTime = getLong(properties, DB_CONNECTION_TRACKER_MIN_HOLD_TIME, 0);
+        waitTime = getLong(properties, DB_CONNECTION_WAIT_TIME, DEFAULT_WAIT_TIME);
+        waitWarningThreshold = getLong(properties, DB_CONNECTION_WAIT_WARNING_THRESHOLD,
+            DEFAULT_WAIT_WARNING_THRESHOLD);
+        legacyMode = LEGACY_MODE.equalsIgnoreCase(get(properties, DB_CONNECTION_POOL_MODE));
+        spareCount = getInt(properties, DB_CONNECTION_SPARE_COUNT, 0);
+        alarmInterval = getLong(properties, DATA_SOURCE_ALARM_INTERVAL, DEFAULT_ALARM_INTERVAL);
+        leakThreshold = getLong(properties, DB_CONNECTION_LEAK_THRESHOLD, 0);
+        leakCheckInterval = getLong(properties, DB_CONNECTION_LEAK_CHECK_INTERVAL, DEFAULT_LEAK_CHECK_INTERVAL);
+        leakReclaim = "true".equals(get(properties, DB_CONNECTION_LEAK_RECLAIM));
+        queryTimeout = getInt(properties, DB_QUERY_TIMEOUT, DEFAULT_QUERY_TIMEOUT);
+        statementWarningThreshold = getLong(properties, DB_STATEMENT_WARNING_THRESHOLD,
+            DEFAULT_STATEMENT_WARNING_THRESHOLD);
+        auditEnabled = "true".equals(get(properties, ENABLE_AUDIT));
+        auditProxy = "true".equals(get(properties, DB_STATEMENT_AUDIT_PROXY));
+        statementCacheSize = getInt(properties, DB_STATEMENT_CACHE_SIZE, 0);
+        idleTimeout = getLong(properties, DB_CONNECTION_IDLE_TIMEOUT, DEFAULT_IDLE_TIMEOUT);
+        sweepInterval = getLong(properties, DB_CONNECTION_SWEEP_INTERVAL, DEFAULT_SWEEP_INTERVAL);
+        maxLifetime = getLong(properties, DB_CONNECTION_MAX_LIFETIME, 0);
+        breakerThreshold = getInt(properties, DB_CONNECTION_BREAKER_THRESHOLD,
+            DEFAULT_BREAKER_THRESHOLD);
+        breakerRetryInterval = getLong(properties, DB_CONNECTION_BREAKER_RETRY_INTERVAL,
+            DEFAULT_BREAKER_RETRY_INTERVAL);
+        breakerMaxRetryInterval = getLong(properties, DB_CONNECTION_BREAKER_MAX_RETRY_INTERVAL,
+            DEFAULT_BREAKER_MAX_RETRY_INTERVAL);
+        validation = parseValidation(get(properties, DB_CONNECTION_VALIDATION));
+        validationIdleTime = getLong(properties, DB_CONNECTION_VALIDATION_IDLE_TIME,
+            DEFAULT_VALIDATION_IDLE_TIME);
+        validationTimeout = getInt(properties, DB_CONNECTION_VALIDATION_TIMEOUT,
+            DEFAULT_VALIDATION_TIMEOUT);
+        validationIsValid = "true".equals(get(properties, DB_CONNECTION_VALIDATION_IS_VALID));
+        auditBatchRows = Math.max(0, getInt(properties, DB_STATEMENT_AUDIT_BATCH_ROWS,
+            DEFAULT_AUDIT_BATCH_ROWS));
+
+        String alarm = get(properties, DATA_SOURCE_ALARM);
+        int warning = -1;
+        int error = -1;
+        if (alarm != null && alarm.trim().length() > 0)
+        {
+            Matcher matcher = ALARM_PATTERN.matcher(alarm);
+            if (matcher.find())
+            {
+                try
+                {
+                    warning = Integer.parseInt(matcher.group(2));
+                    error = Integer.parseInt(matcher.group(4));
+                }
+                catch (NumberFormatException e)
+                {
+                    // out of range levels are reported as an invalid alarm
+                    warning = -1;
+                    error = -1;
+                }
+            }
+        }
+        else
+        {
+            alarm = null;
+        }
+        alarmProperty = alarm;
+        alarmWarningLevel = warning;
+        alarmErrorLevel = error;
+    }
+
+    /**
+     * @return <code>true</code> if DataSourceAlarm is set but doesn't match
+     *         the Warning=xx%,Error=xx% format.
+     */
+    boolean isAlarmInvalid()
+    {
+        return alarmProperty != null && alarmWarningLevel < 0;
+    }
+
+    /**
+     * Parses a DBConnectionValidation value, never, idle, always or return.
+     * Unknown values turn the validation off.
+     */
+    static int parseValidation(String value)
+    {
+        if ("idle".equalsIgnoreCase(value)) return DBConnectionPool.VALIDATE_IDLE;
+        if ("always".equalsIgnoreCase(value)) return DBConnectionPool.VALIDATE_ALWAYS;
+        if ("return".equalsIgnoreCase(value)) return DBConnectionPool.VALIDATE_ON_RETURN;
+        return DBConnectionPool.VALIDATE_NEVER;
+    }
+
+    private static String get(Properties properties, String name)
+    {
+        return properties == null ? null : properties.getProperty(name);
+    }
+
+    private static int getInt(Properties properties, String name, int defaultValue)
+    {
+        String value = get(properties, name);
+        if (value == null) return defaultValue;
+        try{
+            return Integer.parseInt(value.trim());
+        }catch(NumberFormatException ne){
+            invalid(name, value, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Durations are in milliseconds and may be longer than the int range.
+     */
+    private static long getLong(Properties properties, String name, long defaultValue)
+    {
+        String value = get(properties, name);
+        if (value == null) return defaultValue;
+        try{
+            return Long.parseLong(value.trim());
+        }catch(NumberFormatException ne){
+            invalid(name, value, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    private static void invalid(String name, String value, long defaultValue)
+    {
+        Logger.getLogger("DBPool").warn("Invalid configuration for '" + name + "'[" + value
+            + "], using the default " + defaultValue);
+    }
+}
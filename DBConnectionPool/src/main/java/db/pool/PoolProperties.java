@@ -7,19 +7,36 @@ import java.util.Properties;
 public class PoolProperties {
 	
 	private static Properties properties;
+	// parsed snapshot of the properties, read on the hot paths
+	private static volatile PoolConfig config = new PoolConfig(null);
 	
 	public PoolProperties(Reader resource) throws IOException{
-		properties = new Properties();
-		properties.load(resource);
+		Properties loaded = new Properties();
+		loaded.load(resource);
+		properties = loaded;
+		reload();
+	}
+	
+	/**
+	 * Parses the current properties into a new configuration snapshot and
+	 * makes it visible to the pools.
+	 */
+	public static void reload(){
+		config = new PoolConfig(properties);
+	}
+	
+	static PoolConfig getConfig(){
+		return config;
 	}
 	
 	public static String getProperty(String propertName){
+		if(properties==null) return null;
 		return properties.getProperty(propertName);
 	}
 	
 	public static int getIntProperty(String propertName, int defaultValue){
 		try{
-			return Integer.parseInt(properties.getProperty(propertName));
+			return Integer.parseInt(getProperty(propertName));
 		}catch(NumberFormatException ne){
 			return defaultValue;
 		}
@@ -0,0 +1,167 @@
+package db.pool;
+
+/**
+ * Single pass scanner of the bind parameters of an SQL. String literals,
+ * quoted identifiers, dollar quoted bodies, line and block comments are
+ * skipped, as are the <code>::</code> cast and <code>:=</code> assignment
+ * operators. A parameter is either a JDBC <code>?</code> or a named
+ * <code>:name</code> variable, whose name starts with a letter or an
+ * underscore.
+ */
+final class SqlLexer
+{
+    private SqlLexer()
+    {
+    }
+
+    /**
+     * @return the number of bind parameters in the SQL.
+     */
+    static int countParameters(String sql)
+    {
+        int count = 0;
+        int i = nextParameter(sql, 0);
+        while (i >= 0)
+        {
+            count++;
+            i = nextParameter(sql, parameterEnd(sql, i));
+        }
+        return count;
+    }
+
+    /**
+     * @return the position of the next <code>?</code> or of the colon of the
+     *         next named variable, starting at <code>from</code>, or -1 when
+     *         there are no more parameters.
+     */
+    static int nextParameter(String sql, int from)
+    {
+        int length = sql.length();
+        int i = from;
+        while (i < length)
+        {
+            char c = sql.charAt(i);
+            switch (c)
+            {
+                case '?':
+                    return i;
+                case ':':
+                    if (i + 1 < length)
+                    {
+                        char next = sql.charAt(i + 1);
+                        if (next == ':' || next == '=')
+                        {
+                            i += 2;
+                            continue;
+                        }
+                        if (isNameStart(next)) return i;
+                    }
+                    i++;
+                    break;
+                case '\'':
+                case '"':
+                case '`':
+                    i = skipQuoted(sql, i, c);
+                    break;
+                case '-':
+                    if (i + 1 < length && sql.charAt(i + 1) == '-')
+                        i = skipLine(sql, i + 2);
+                    else i++;
+                    break;
+                case '/':
+                    if (i + 1 < length && sql.charAt(i + 1) == '*')
+                        i = skipBlock(sql, i + 2);
+                    else i++;
+                    break;
+                case '$':
+                    // a $ inside an identifier such as v$session or a$b$c
+                    // doesn't open a dollar quoted body
+                    if (i > 0 && isIdentifierChar(sql.charAt(i - 1))) i++;
+                    else i = skipDollarQuoted(sql, i);
+                    break;
+                default:
+                    i++;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the position after the parameter starting at <code>start</code>.
+     */
+    static int parameterEnd(String sql, int start)
+    {
+        if (sql.charAt(start) == '?') return start + 1;
+        int i = start + 1;
+        while (i < sql.length() && isNameChar(sql.charAt(i)))
+            i++;
+        return i;
+    }
+
+    /**
+     * A named variable starts with a letter or an underscore, so array
+     * slices like <code>arr[1:2]</code> aren't taken for one.
+     */
+    private static boolean isNameStart(char c)
+    {
+        return Character.isLetter(c) || c == '_';
+    }
+
+    private static boolean isNameChar(char c)
+    {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    private static boolean isIdentifierChar(char c)
+    {
+        return isNameChar(c) || c == '$';
+    }
+
+    /**
+     * Skips a quoted literal or identifier, a doubled quote is an escaped one.
+     */
+    private static int skipQuoted(String sql, int start, char quote)
+    {
+        int length = sql.length();
+        int i = start + 1;
+        while (i < length)
+        {
+            if (sql.charAt(i) == quote)
+            {
+                if (i + 1 < length && sql.charAt(i + 1) == quote) i += 2;
+                else return i + 1;
+            }
+            else i++;
+        }
+        return length;
+    }
+
+    private static int skipLine(String sql, int from)
+    {
+        int end = sql.indexOf('\n', from);
+        return end < 0 ? sql.length() : end + 1;
+    }
+
+    private static int skipBlock(String sql, int from)
+    {
+        int end = sql.indexOf("*/", from);
+        return end < 0 ? sql.length() : end + 2;
+    }
+
+    /**
+     * Skips a <code>$tag$ ... $tag$</code> body, a lone <code>$</code> or a
+     * <code>$1</code> style parameter is an ordinary character.
+     */
+    private static int skipDollarQuoted(String sql, int start)
+    {
+        int length = sql.length();
+        int i = start + 1;
+        if (i < length && Character.isDigit(sql.charAt(i))) return i;
+        while (i < length && isNameChar(sql.charAt(i)))
+            i++;
+        if (i >= length || sql.charAt(i) != '$') return start + 1;
+        String tag = sql.substring(start, i + 1);
+        int end = sql.indexOf(tag, i + 1);
+        return end < 0 ? length : end + tag.length();
+    }
+}
@@ -0,0 +1,142 @@
+package db.pool;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Idle prepared and callable statements of a connection, least recently
+ * used first. A statement is taken out of the cache while it is in use and
+ * put back when the application closes it, so the driver only prepares each
+ * SQL once per connection. The size limit is the one of the pool and is read
+ * on every put.
+ */
+class StatementCache
+{
+    private final DBConnectionPool pool;
+    private final LinkedHashMap<Key, DBStatement> idle =
+        new LinkedHashMap<Key, DBStatement>(16, 0.75f, true);
+
+    StatementCache(DBConnectionPool pool)
+    {
+        this.pool = pool;
+    }
+
+    /**
+     * @return the idle statement prepared for the key or <code>null</code>.
+     */
+    synchronized DBStatement take(Key key)
+    {
+        DBStatement statement = idle.remove(key);
+        if (statement != null) pool.statementCacheHit();
+        else pool.statementCacheMiss();
+        return statement;
+    }
+
+    /**
+     * Puts a statement closed by the application back in the cache, evicting
+     * the least recently used ones above the size limit.
+     * 
+     * @return <code>false</code> if the statement wasn't cached and has to be
+     *         closed by the caller.
+     */
+    synchronized boolean release(Key key, DBStatement statement)
+    {
+        int maxSize = pool.getStatementCacheSize();
+        if (maxSize <= 0 || idle.containsKey(key)) return false;
+        idle.put(key, statement);
+        Iterator<DBStatement> itt = idle.values().iterator();
+        while (idle.size() > maxSize && itt.hasNext())
+        {
+            DBStatement eldest = itt.next();
+            itt.remove();
+            eldest.closeQuietly();
+            pool.statementCacheEviction();
+        }
+        return true;
+    }
+
+    synchronized int size()
+    {
+        return idle.size();
+    }
+
+    /**
+     * Closes every idle statement.
+     */
+    synchronized void clear()
+    {
+        for (DBStatement statement : idle.values())
+            statement.closeQuietly();
+        idle.clear();
+    }
+
+    /**
+     * Identifies a prepared statement by its SQL and all the options it was
+     * prepared with.
+     */
+    static final class Key
+    {
+        static final int PREPARED = 0;
+        static final int CALLABLE = 1;
+        static final int NONE = -1;
+
+        private final String sql;
+        private final int kind;
+        private final int resultSetType;
+        private final int resultSetConcurrency;
+        private final int resultSetHoldability;
+        private final int autoGeneratedKeys;
+        private final int[] columnIndexes;
+        private final String[] columnNames;
+        private final int hash;
+
+        Key(String sql, int kind, int resultSetType, int resultSetConcurrency,
+            int resultSetHoldability, int autoGeneratedKeys,
+            int[] columnIndexes, String[] columnNames)
+        {
+            this.sql = sql;
+            this.kind = kind;
+            this.resultSetType = resultSetType;
+            this.resultSetConcurrency = resultSetConcurrency;
+            this.resultSetHoldability = resultSetHoldability;
+            this.autoGeneratedKeys = autoGeneratedKeys;
+            this.columnIndexes = columnIndexes == null ? null : columnIndexes.clone();
+            this.columnNames = columnNames == null ? null : columnNames.clone();
+            int h = sql.hashCode();
+            h = 31 * h + kind;
+            h = 31 * h + resultSetType;
+            h = 31 * h + resultSetConcurrency;
+            h = 31 * h + resultSetHoldability;
+            h = 31 * h + autoGeneratedKeys;
+            h = 31 * h + Arrays.hashCode(this.columnIndexes);
+            h = 31 * h + Arrays.hashCode(this.columnNames);
+            hash = h;
+        }
+
+        Key(String sql, int kind)
+        {
+            this(sql, kind, NONE, NONE, NONE, NONE, null, null);
+        }
+
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        public boolean equals(Object obj)
+        {
+            if (this == obj) return true;
+            if (!(obj instanceof Key)) return false;
+            Key other = (Key) obj;
+            return hash == other.hash && kind == other.kind
+                && resultSetType == other.resultSetType
+                && resultSetConcurrency == other.resultSetConcurrency
+                && resultSetHoldability == other.resultSetHoldability
+                && autoGeneratedKeys == other.autoGeneratedKeys
+                && sql.equals(other.sql)
+                && Arrays.equals(columnIndexes, other.columnIndexes)
+                && Arrays.equals(columnNames, other.columnNames);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package db.pool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.sql.PreparedStatement;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+public class BatchCaptureTest
+{
+    private static ParameterCapture row(int value)
+    {
+        ParameterCapture row = new ParameterCapture(1);
+        row.setInt(1, value);
+        return row;
+    }
+
+    private static String text(BatchCapture batch)
+    {
+        StringBuffer buffer = new StringBuffer();
+        batch.appendTo(buffer);
+        return buffer.toString();
+    }
+
+    @Test
+    public void keepsOnlyTheFirstAndLastRows()
+    {
+        BatchCapture batch = new BatchCapture(2);
+        for (int i = 0; i < 1000; i++)
+            batch.add(row(100000 + i));
+
+        String text = text(batch);
+        assertEquals(1000, batch.getRowCount());
+        assertTrue(text, text.contains("100000"));
+        assertTrue(text, text.contains("100001"));
+        assertFalse(text, text.contains("100002"));
+        assertFalse(text, text.contains("100997"));
+        assertTrue(text, text.indexOf("100998") < text.indexOf("100999"));
+        assertTrue(text, text.contains("... 996 rows not shown ..."));
+        assertTrue(text, text.endsWith("Batch rows=1000, parameter bytes=" + batch.getTotalBytes()));
+    }
+
+    @Test
+    public void resetStartsAnEmptyBatch()
+    {
+        BatchCapture batch = new BatchCapture(2);
+        for (int i = 0; i < 10; i++)
+            batch.add(row(100000 + i));
+        batch.reset();
+        assertEquals(0, batch.getRowCount());
+        assertEquals(0, batch.getTotalBytes());
+
+        batch.add(row(200000));
+        String text = text(batch);
+        assertFalse(text, text.contains("100000"));
+        assertFalse(text, text.contains("not shown"));
+        assertTrue(text, text.contains("200000"));
+        assertTrue(text, text.contains("Batch rows=1,"));
+    }
+
+    @Test
+    public void executeBatchResetsTheCapture() throws Exception
+    {
+        FakeDriver.INSTANCE.reset();
+        new PoolProperties(new StringReader("DBStatementAuditBatchRows=1\n"));
+        DBConnectionPool pool = new DBConnectionPool(FakeDriver.URL, "user", "password", true, 1, 1,
+            "select 1", "batch");
+        try
+        {
+            DBConnection conn = (DBConnection) pool.getConnection();
+            conn.setLogger(Logger.getLogger("DBPool"));
+            conn.enableAudit(true);
+            PreparedStatement ps = conn.prepareStatement("insert into item values (?)");
+            for (int i = 0; i < 10; i++)
+            {
+                ps.setInt(1, 100000 + i);
+                ps.addBatch();
+            }
+            String text = ps.toString();
+            assertTrue(text, text.contains("... 8 rows not shown ..."));
+            assertTrue(text, text.contains("Batch rows=10,"));
+            assertEquals(10, ps.executeBatch().length);
+
+            text = ps.toString();
+            assertFalse(text, text.contains("Batch rows"));
+            ps.setInt(1, 200000);
+            ps.addBatch();
+            text = ps.toString();
+            assertFalse(text, text.contains("100009"));
+            assertTrue(text, text.contains("Batch rows=1,"));
+            ps.close();
+            conn.close();
+        }
+        finally
+        {
+            pool.closeConnections();
+        }
+    }
+}
@@ -0,0 +1,502 @@
+package db.pool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DBConnectionPoolTest
+{
+    private static final AtomicInteger POOL_IDS = new AtomicInteger();
+
+    private final FakeDriver driver = FakeDriver.INSTANCE;
+    private DBConnectionPool pool;
+
+    @Before
+    public void setUp()
+    {
+        driver.reset();
+    }
+
+    @After
+    public void tearDown()
+    {
+        driver.down = false;
+        if (pool != null) pool.closeConnections();
+    }
+
+    private DBConnectionPool createPool(int minSize, int maxSize, long waitTime) throws IOException
+    {
+        return createPool(minSize, maxSize, waitTime, "");
+    }
+
+    private DBConnectionPool createPool(int minSize, int maxSize, long waitTime, String properties)
+        throws IOException
+    {
+        return createPool(minSize, maxSize, waitTime, properties, true);
+    }
+
+    private DBConnectionPool createPool(int minSize, int maxSize, long waitTime, String properties,
+        boolean autoCommit) throws IOException
+    {
+        new PoolProperties(new StringReader("DBConnectionWaitTime=" + waitTime + "\n" + properties));
+        pool = new DBConnectionPool(FakeDriver.URL, "user", "password", autoCommit, minSize, maxSize,
+            "select 1", "test-" + POOL_IDS.incrementAndGet());
+        return pool;
+    }
+
+    @Test
+    public void concurrentBorrowAndReturnLeavesNothingInUse() throws Exception
+    {
+        final DBConnectionPool pool = createPool(1, 4, 5000);
+        final AtomicInteger failures = new AtomicInteger();
+        ExecutorService threads = Executors.newFixedThreadPool(16);
+        for (int i = 0; i < 16; i++)
+        {
+            threads.execute(new Runnable()
+            {
+                public void run()
+                {
+                    for (int j = 0; j < 500; j++)
+                    {
+                        try
+                        {
+                            Connection conn = pool.getConnection();
+                            conn.setAutoCommit(false);
+                            conn.close();
+                        }
+                        catch (SQLException e)
+                        {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            });
+        }
+        threads.shutdown();
+        assertTrue(threads.awaitTermination(60, TimeUnit.SECONDS));
+
+        assertEquals(0, failures.get());
+        assertEquals(0, pool.getInUse());
+        assertEquals(0, pool.getWaitingCount());
+        assertTrue(pool.getCurrentCount() <= 4);
+        assertTrue(driver.opened.get() <= 4);
+    }
+
+    @Test
+    public void returnedConnectionIsHandedToWaiter() throws Exception
+    {
+        final DBConnectionPool pool = createPool(1, 1, 5000);
+        Connection held = pool.getConnection();
+        ExecutorService thread = Executors.newSingleThreadExecutor();
+        try
+        {
+            Future<Connection> waiting = thread.submit(new Callable<Connection>()
+            {
+                public Connection call() throws SQLException
+                {
+                    return pool.getConnection();
+                }
+            });
+            awaitWaiters(pool, 1);
+
+            held.close();
+            final Connection handedOver = waiting.get(5, TimeUnit.SECONDS);
+            assertNotNull(handedOver);
+            assertEquals(1, pool.getInUse());
+            assertEquals(0, pool.getWaitingCount());
+            assertEquals(1, driver.opened.get());
+
+            // only the borrowing thread can return a connection
+            thread.submit(new Callable<Void>()
+            {
+                public Void call() throws SQLException
+                {
+                    handedOver.close();
+                    return null;
+                }
+            }).get(5, TimeUnit.SECONDS);
+            assertEquals(0, pool.getInUse());
+        }
+        finally
+        {
+            thread.shutdownNow();
+        }
+    }
+
+    @Test
+    public void connectionHandedToWaiterIsValidated() throws Exception
+    {
+        final DBConnectionPool pool = createPool(1, 1, 5000,
+            "DBConnectionValidation=always\nDBConnectionValidationIsValid=true\n");
+        Connection held = pool.getConnection();
+        ExecutorService thread = Executors.newSingleThreadExecutor();
+        try
+        {
+            Future<Connection> waiting = thread.submit(new Callable<Connection>()
+            {
+                public Connection call() throws SQLException
+                {
+                    return pool.getConnection();
+                }
+            });
+            awaitWaiters(pool, 1);
+
+            driver.breakConnections();
+            int validations = driver.validations.get();
+            held.close();
+            // the broken connection is replaced and the replacement handed over
+            final Connection handedOver = waiting.get(5, TimeUnit.SECONDS);
+            assertNotNull(handedOver);
+            assertEquals(validations + 2, driver.validations.get());
+            assertEquals(2, driver.opened.get());
+            assertEquals(1, pool.getCurrentCount());
+
+            thread.submit(new Callable<Void>()
+            {
+                public Void call() throws SQLException
+                {
+                    handedOver.close();
+                    return null;
+                }
+            }).get(5, TimeUnit.SECONDS);
+            assertEquals(0, pool.getInUse());
+        }
+        finally
+        {
+            thread.shutdownNow();
+        }
+    }
+
+    @Test
+    public void waiterTimesOutWhenNothingIsReturned() throws Exception
+    {
+        DBConnectionPool pool = createPool(1, 1, 200);
+        Connection held = pool.getConnection();
+        long start = System.nanoTime();
+        try
+        {
+            pool.getConnection();
+            fail("the pool has a single connection and it is in use");
+        }
+        catch (SQLException expected)
+        {
+        }
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("waited " + waited + "ms", waited >= 150);
+        assertEquals(0, pool.getWaitingCount());
+        assertEquals(1, pool.getInUse());
+
+        held.close();
+        assertEquals(0, pool.getInUse());
+    }
+
+    @Test
+    public void failedConnectsReleaseTheirSlots() throws Exception
+    {
+        // without the breaker every borrow tries to connect
+        DBConnectionPool pool = createPool(0, 2, 100, "DBConnectionBreakerThreshold=0\n");
+        driver.down = true;
+        for (int i = 0; i < 5; i++)
+        {
+            try
+            {
+                pool.getConnection();
+                fail("the database is down");
+            }
+            catch (SQLException expected)
+            {
+            }
+        }
+        assertTrue(driver.failed.get() > 0);
+        awaitNoPending(pool);
+        assertEquals(0, pool.getCurrentCount());
+        assertEquals(0, pool.getInUse());
+
+        // both slots are free again once the database is back
+        driver.down = false;
+        List<Connection> borrowed = new ArrayList<Connection>();
+        borrowed.add(pool.getConnection());
+        borrowed.add(pool.getConnection());
+        assertEquals(2, pool.getInUse());
+        for (Connection conn : borrowed)
+            conn.close();
+        assertEquals(0, pool.getInUse());
+        assertTrue(pool.getCurrentCount() <= 2);
+    }
+
+    @Test
+    public void borrowerFailsWithTheConnectErrorWithoutWaiting() throws Exception
+    {
+        DBConnectionPool pool = createPool(0, 2, 5000);
+        driver.down = true;
+        long start = System.nanoTime();
+        try
+        {
+            pool.getConnection();
+            fail("the database is down");
+        }
+        catch (SQLException expected)
+        {
+            assertEquals("08001", expected.getSQLState());
+        }
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("waited " + waited + "ms", waited < 1000);
+        assertEquals(0, pool.getWaitingCount());
+        awaitNoPending(pool);
+    }
+
+    @Test
+    public void waitersGiveUpWhenConnectsFail() throws Exception
+    {
+        final DBConnectionPool pool = createPool(0, 1, 300);
+        driver.down = true;
+        final CountDownLatch done = new CountDownLatch(2);
+        final AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < 2; i++)
+        {
+            new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        pool.getConnection().close();
+                    }
+                    catch (SQLException e)
+                    {
+                        failures.incrementAndGet();
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(2, failures.get());
+        assertEquals(0, pool.getWaitingCount());
+        awaitNoPending(pool);
+        assertEquals(0, pool.getCurrentCount());
+    }
+
+    @Test
+    public void connectionValidatedBySweeperIsHandedToWaiter() throws Exception
+    {
+        borrowDuringSweepValidation(createPool(1, 1, 5000));
+    }
+
+    @Test
+    public void legacyBorrowerWaitsForConnectionValidatedBySweeper() throws Exception
+    {
+        DBConnectionPool pool = createPool(1, 1, 5000, "DBConnectionPoolMode=legacy\n");
+        assertTrue(pool.isLegacyMode());
+        borrowDuringSweepValidation(pool);
+    }
+
+    @Test
+    public void sweepDoesNotWaitForHungValidations() throws Exception
+    {
+        DBConnectionPool pool = createPool(1, 1, 5000);
+        pool.setValidationIsValid(true);
+        pool.setValidationTimeout(1);
+        driver.validationDelay = 3000;
+
+        long start = System.nanoTime();
+        pool.cleanStaledConnections();
+        long swept = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("swept in " + swept + "ms", swept < 500);
+
+        // the timed out connection is replaced to keep the minimum size
+        long deadline = System.currentTimeMillis() + 5000;
+        while (driver.opened.get() < 2 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(2, driver.opened.get());
+        driver.validationDelay = 0;
+        pool.getConnection().close();
+        assertEquals(1, pool.getCurrentCount());
+    }
+
+    private void borrowDuringSweepValidation(final DBConnectionPool pool) throws Exception
+    {
+        pool.setValidationIsValid(true);
+        driver.validationDelay = 500;
+        Thread sweeper = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                pool.cleanStaledConnections();
+            }
+        });
+        sweeper.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (driver.validations.get() == 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+
+        long start = System.nanoTime();
+        Connection conn = pool.getConnection();
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("waited " + waited + "ms", waited < 2000);
+        conn.close();
+        sweeper.join(5000);
+        assertEquals(0, pool.getInUse());
+        assertEquals(1, driver.opened.get());
+    }
+
+    @Test
+    public void autoCommitChangedOnTheDriverConnectionIsReset() throws Exception
+    {
+        DBConnectionPool pool = createPool(1, 1, 5000, "", false);
+        Connection conn = pool.getConnection();
+        conn.unwrap(Connection.class).setAutoCommit(true);
+        conn.close();
+        // the driver connection is in auto commit, there is nothing to roll back
+        assertEquals(0, driver.calls("rollback"));
+
+        conn = pool.getConnection();
+        assertFalse(conn.unwrap(Connection.class).getAutoCommit());
+        conn.close();
+        assertEquals(1, driver.opened.get());
+    }
+
+    @Test
+    public void cleanReturnMakesNoRollback() throws Exception
+    {
+        DBConnectionPool pool = createPool(1, 1, 5000, "", false);
+        pool.getConnection().close();
+
+        Connection conn = pool.getConnection();
+        PreparedStatement ps = conn.prepareStatement("update item set name = 'a'");
+        ps.executeUpdate();
+        ps.close();
+        conn.commit();
+        conn.close();
+        assertEquals(1, driver.calls("commit"));
+        assertEquals(0, driver.calls("rollback"));
+    }
+
+    @Test
+    public void dirtyReturnIsRolledBack() throws Exception
+    {
+        DBConnectionPool pool = createPool(1, 1, 5000, "", false);
+        Connection conn = pool.getConnection();
+        PreparedStatement ps = conn.prepareStatement("update item set name = 'a'");
+        ps.executeUpdate();
+        ps.close();
+        conn.close();
+        assertEquals(1, driver.calls("rollback"));
+
+        // the rollback ended the transaction, the next return is clean
+        pool.getConnection().close();
+        assertEquals(1, driver.calls("rollback"));
+        assertEquals(1, driver.opened.get());
+    }
+
+    @Test
+    public void breakerFailsFastWhileTheDatabaseIsDownAndProbeClosesIt() throws Exception
+    {
+        DBConnectionPool pool = createPool(0, 2, 5000,
+            "DBConnectionBreakerThreshold=3\nDBConnectionBreakerRetryInterval=50\n");
+        driver.down = true;
+        for (int i = 0; i < 3; i++)
+        {
+            try
+            {
+                pool.getConnection();
+                fail("the database is down");
+            }
+            catch (SQLException expected)
+            {
+            }
+        }
+        assertTrue(pool.isBreakerOpen());
+
+        int connects = driver.failed.get();
+        long start = System.nanoTime();
+        try
+        {
+            pool.getConnection();
+            fail("the breaker is open");
+        }
+        catch (SQLException expected)
+        {
+            assertEquals("08001", expected.getSQLState());
+        }
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("waited " + waited + "ms", waited < 100);
+
+        // the prober keeps connecting in background
+        Thread.sleep(300);
+        assertTrue(driver.failed.get() > connects);
+        assertTrue(pool.isBreakerOpen());
+
+        driver.down = false;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.isBreakerOpen() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertFalse(pool.isBreakerOpen());
+        pool.getConnection().close();
+        assertEquals(0, pool.getInUse());
+    }
+
+    @Test
+    public void retirementOpensTheReplacementBeforeClosing() throws Exception
+    {
+        DBConnectionPool pool = createPool(1, 1, 5000);
+        Connection conn = pool.getConnection();
+        pool.setMaxLifetime(50);
+        Thread.sleep(100);
+        conn.close();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!driver.events.contains("close 1") && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        pool.setMaxLifetime(0);
+        assertTrue(driver.events.toString(), driver.events.contains("close 1"));
+        assertTrue(driver.events.toString(),
+            driver.events.indexOf("open 2") < driver.events.indexOf("close 1"));
+        assertEquals(1, pool.getCurrentCount());
+        assertEquals(2, driver.opened.get());
+
+        pool.getConnection().close();
+        assertEquals(0, pool.getInUse());
+        assertEquals(2, driver.opened.get());
+    }
+
+    private static void awaitWaiters(DBConnectionPool pool, int count) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getWaitingCount() < count && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertEquals(count, pool.getWaitingCount());
+    }
+
+    private static void awaitNoPending(DBConnectionPool pool) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getPendingCount() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertEquals(0, pool.getPendingCount());
+    }
+}
@@ -0,0 +1,241 @@
+package db.pool;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * In-memory JDBC driver for the pool tests. It accepts the
+ * <code>jdbc:fake:</code> URLs and opens connections that do nothing. The
+ * test can make every connect fail to simulate a database that is down.
+ */
+class FakeDriver implements Driver
+{
+    static final String URL = "jdbc:fake:test";
+
+    static final FakeDriver INSTANCE = new FakeDriver();
+
+    static
+    {
+        try
+        {
+            DriverManager.registerDriver(INSTANCE);
+        }
+        catch (SQLException e)
+        {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    final AtomicInteger opened = new AtomicInteger();
+    final AtomicInteger failed = new AtomicInteger();
+    final AtomicInteger validations = new AtomicInteger();
+    // calls made on the driver connections, by method name
+    private final ConcurrentHashMap<String, AtomicInteger> calls =
+        new ConcurrentHashMap<String, AtomicInteger>();
+    // "open n" and "close n" for each connection, in order
+    final List<String> events = new CopyOnWriteArrayList<String>();
+    volatile boolean down;
+    // milliseconds isValid takes to answer
+    volatile long validationDelay;
+    // connections opened up to this number fail validation
+    volatile int brokenUpTo;
+
+    void reset()
+    {
+        opened.set(0);
+        failed.set(0);
+        validations.set(0);
+        calls.clear();
+        events.clear();
+        down = false;
+        validationDelay = 0;
+        brokenUpTo = 0;
+    }
+
+    /**
+     * Makes the connections opened so far fail validation.
+     */
+    void breakConnections()
+    {
+        brokenUpTo = opened.get();
+    }
+
+    int calls(String method)
+    {
+        AtomicInteger count = calls.get(method);
+        return count == null ? 0 : count.get();
+    }
+
+    private void called(String method)
+    {
+        AtomicInteger count = calls.get(method);
+        if (count == null)
+        {
+            AtomicInteger created = new AtomicInteger();
+            count = calls.putIfAbsent(method, created);
+            if (count == null) count = created;
+        }
+        count.incrementAndGet();
+    }
+
+    public Connection connect(String url, Properties info) throws SQLException
+    {
+        if (!acceptsURL(url)) return null;
+        if (down)
+        {
+            failed.incrementAndGet();
+            throw new SQLException("database is down", "08001");
+        }
+        int number = opened.incrementAndGet();
+        events.add("open " + number);
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] { Connection.class }, new FakeConnection(this, number));
+    }
+
+    /**
+     * @return the values bound to a statement of this driver, by parameter
+     *         index. <code>setNull</code> binds <code>null</code>.
+     */
+    static Map<Integer, Object> parameters(Statement statement)
+    {
+        return ((FakeStatement) Proxy.getInvocationHandler(statement)).parameters;
+    }
+
+    public boolean acceptsURL(String url)
+    {
+        return url != null && url.startsWith("jdbc:fake:");
+    }
+
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info)
+    {
+        return new DriverPropertyInfo[0];
+    }
+
+    public int getMajorVersion()
+    {
+        return 1;
+    }
+
+    public int getMinorVersion()
+    {
+        return 0;
+    }
+
+    public boolean jdbcCompliant()
+    {
+        return false;
+    }
+
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException
+    {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    /**
+     * Connection that keeps its auto commit and closed flags, creates
+     * {@link FakeStatement}s and answers every other call with the default value of its return type.
+     */
+    private static class FakeConnection implements InvocationHandler
+    {
+        private final FakeDriver driver;
+        private final int number;
+        private boolean autoCommit = true;
+        private boolean closed;
+
+        FakeConnection(FakeDriver driver, int number)
+        {
+            this.driver = driver;
+            this.number = number;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws InterruptedException
+        {
+            String name = method.getName();
+            driver.called(name);
+            if (name.equals("close"))
+            {
+                if (!closed) driver.events.add("close " + number);
+                closed = true;
+            }
+            else if (name.equals("isClosed")) return closed;
+            else if (name.equals("unwrap")) return proxy;
+            else if (name.equals("isValid"))
+            {
+                driver.validations.incrementAndGet();
+                if (driver.validationDelay > 0) Thread.sleep(driver.validationDelay);
+                return !closed && number > driver.brokenUpTo;
+            }
+            else if (name.equals("setAutoCommit")) autoCommit = (Boolean) args[0];
+            else if (name.equals("getAutoCommit")) return autoCommit;
+            else if (name.equals("getTransactionIsolation")) return Connection.TRANSACTION_READ_COMMITTED;
+            else if (name.equals("createStatement") || name.equals("prepareStatement")
+                    || name.equals("prepareCall"))
+                return Proxy.newProxyInstance(FakeDriver.class.getClassLoader(),
+                    new Class<?>[] { method.getReturnType() }, new FakeStatement());
+            else if (name.equals("hashCode")) return System.identityHashCode(proxy);
+            else if (name.equals("equals")) return proxy == args[0];
+            else if (name.equals("toString")) return "FakeConnection";
+            return defaultValue(method.getReturnType());
+        }
+    }
+
+    /**
+     * Statement that keeps its bound values and batch and answers every
+     * other call with the default value of its return type.
+     */
+    private static class FakeStatement implements InvocationHandler
+    {
+        final Map<Integer, Object> parameters = new HashMap<Integer, Object>();
+        private int batchRows;
+        private boolean closed;
+
+        public Object invoke(Object proxy, Method method, Object[] args)
+        {
+            String name = method.getName();
+            if (name.equals("close")) closed = true;
+            else if (name.equals("isClosed")) return closed;
+            else if (name.equals("unwrap")) return proxy;
+            else if (name.equals("setNull")) parameters.put((Integer) args[0], null);
+            else if (name.startsWith("set") && args != null && args.length >= 2
+                    && args[0] instanceof Integer)
+                parameters.put((Integer) args[0], args[1]);
+            else if (name.equals("clearParameters")) parameters.clear();
+            else if (name.equals("addBatch")) batchRows++;
+            else if (name.equals("clearBatch")) batchRows = 0;
+            else if (name.equals("executeBatch"))
+            {
+                int[] counts = new int[batchRows];
+                batchRows = 0;
+                return counts;
+            }
+            else if (name.equals("hashCode")) return System.identityHashCode(proxy);
+            else if (name.equals("equals")) return proxy == args[0];
+            else if (name.equals("toString")) return "FakeStatement";
+            return defaultValue(method.getReturnType());
+        }
+    }
+
+    private static Object defaultValue(Class<?> type)
+    {
+        if (type == boolean.class) return Boolean.FALSE;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        return null;
+    }
+}
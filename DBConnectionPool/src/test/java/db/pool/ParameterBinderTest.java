@@ -0,0 +1,106 @@
+package db.pool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParameterBinderTest
+{
+    private Connection conn;
+
+    @Before
+    public void setUp() throws SQLException
+    {
+        conn = FakeDriver.INSTANCE.connect(FakeDriver.URL, new Properties());
+    }
+
+    @After
+    public void tearDown() throws SQLException
+    {
+        conn.close();
+    }
+
+    private Map<Integer, Object> bindList(List<String> values, int size) throws SQLException
+    {
+        ParameterBinder binder = new ParameterBinder();
+        PreparedStatement ps = binder.prepareStatement("select name from item where id in ("
+            + binder.getBucketedVariableList("id", size) + ")", conn);
+        binder.setStringList("id", values);
+        return FakeDriver.parameters(ps);
+    }
+
+    @Test
+    public void bucketSizeIsTheNextPowerOfTwo()
+    {
+        assertEquals(1, ParameterBinder.getBucketSize(0));
+        assertEquals(1, ParameterBinder.getBucketSize(1));
+        assertEquals(2, ParameterBinder.getBucketSize(2));
+        assertEquals(4, ParameterBinder.getBucketSize(3));
+        assertEquals(8, ParameterBinder.getBucketSize(5));
+        assertEquals(8, ParameterBinder.getBucketSize(8));
+        assertEquals(1 << 30, ParameterBinder.getBucketSize((1 << 29) + 1));
+        assertEquals(1 << 30, ParameterBinder.getBucketSize(1 << 30));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void bucketSizeAboveTheLargestPowerOfTwoIsRejected()
+    {
+        ParameterBinder.getBucketSize((1 << 30) + 1);
+    }
+
+    @Test
+    public void bucketedVariableListIsRoundedUp()
+    {
+        assertEquals(":id_1, :id_2, :id_3, :id_4",
+            new ParameterBinder().getBucketedVariableList("id", 3));
+        assertEquals(":id_1", new ParameterBinder().getBucketedVariableList("id", 0));
+    }
+
+    @Test
+    public void stringListPadsWithTheLastValue() throws SQLException
+    {
+        Map<Integer, Object> bound = bindList(Arrays.asList("a", "b", "c"), 3);
+        assertEquals(4, bound.size());
+        assertEquals("a", bound.get(1));
+        assertEquals("b", bound.get(2));
+        assertEquals("c", bound.get(3));
+        assertEquals("c", bound.get(4));
+    }
+
+    @Test
+    public void emptyStringListBindsNull() throws SQLException
+    {
+        Map<Integer, Object> bound = bindList(Collections.<String> emptyList(), 0);
+        assertEquals(1, bound.size());
+        assertTrue(bound.containsKey(1));
+        assertNull(bound.get(1));
+    }
+
+    @Test
+    public void stringListLargerThanTheVariablesIsRejected()
+    {
+        try
+        {
+            bindList(Arrays.asList("a", "b", "c"), 2);
+            fail("the SQL has two variables");
+        }
+        catch (SQLException expected)
+        {
+            assertEquals("Parameter 'id_3' not found.", expected.getMessage());
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package db.pool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class SqlLexerTest
+{
+    @Test
+    public void countsJdbcAndNamedParameters()
+    {
+        assertEquals(3, SqlLexer.countParameters("select * from t where a = ? and b = :b and c = :c"));
+    }
+
+    @Test
+    public void skipsLiteralsCommentsAndCasts()
+    {
+        assertEquals(1, SqlLexer.countParameters(
+            "select ':a', \"?\", x::int -- :b ?\n/* :c */ from t where y := 1 and z = :z"));
+    }
+
+    @Test
+    public void skipsDollarQuotedBody()
+    {
+        assertEquals(1, SqlLexer.countParameters("select $body$ :a ? $body$ from t where x = :x"));
+    }
+
+    @Test
+    public void dollarInsideIdentifierIsNotAQuote()
+    {
+        assertEquals(1, SqlLexer.countParameters("select * from a$b$c where x = :x"));
+        assertEquals(1, SqlLexer.countParameters("select sid from v$session where username = :user"));
+
+        NamedSql parsed = NamedSql.parse("select * from a$b$c where x = :x");
+        assertEquals("select * from a$b$c where x = ?", parsed.getSql());
+        assertArrayEquals(new int[] { 1 }, parsed.getIndexes().get("x"));
+    }
+
+    @Test
+    public void nameMustStartWithLetterOrUnderscore()
+    {
+        assertEquals(0, SqlLexer.countParameters("select arr[1:2] from t"));
+        assertEquals("select arr[1:2] from t where x = ?",
+            NamedSql.parse("select arr[1:2] from t where x = :_x").getSql());
+    }
+}
@@ -0,0 +1,91 @@
+package db.pool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StatementCacheTest
+{
+    private static final AtomicInteger POOL_IDS = new AtomicInteger();
+    private static final String SQL = "select name from item where id = ?";
+
+    private final FakeDriver driver = FakeDriver.INSTANCE;
+    private DBConnectionPool pool;
+    private Connection conn;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        driver.reset();
+        new PoolProperties(new StringReader("DBStatementCacheSize=10\n"));
+        pool = new DBConnectionPool(FakeDriver.URL, "user", "password", true, 1, 1,
+            "select 1", "cache-" + POOL_IDS.incrementAndGet());
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        if (conn != null) conn.close();
+        pool.closeConnections();
+    }
+
+    @Test
+    public void closedStatementIsReusedFromTheCache() throws Exception
+    {
+        conn = pool.getConnection();
+        // the connection prepared its validation query when it was opened
+        int prepares = driver.calls("prepareStatement");
+        PreparedStatement ps = conn.prepareStatement(SQL);
+        Statement prepared = ps.unwrap(Statement.class);
+        ps.close();
+
+        ps = conn.prepareStatement(SQL);
+        assertSame(prepared, ps.unwrap(Statement.class));
+        ps.close();
+        assertEquals(prepares + 1, driver.calls("prepareStatement"));
+        assertEquals(1, pool.getStatementCacheHits());
+        assertEquals(1, pool.getStatementCacheMisses());
+    }
+
+    @Test
+    public void statementWithChangedSettingsIsNotCached() throws Exception
+    {
+        conn = pool.getConnection();
+        int prepares = driver.calls("prepareStatement");
+        PreparedStatement ps = conn.prepareStatement(SQL);
+        Statement prepared = ps.unwrap(Statement.class);
+        ps.setMaxRows(10);
+        ps.close();
+        assertTrue(prepared.isClosed());
+
+        ps = conn.prepareStatement(SQL);
+        assertNotSame(prepared, ps.unwrap(Statement.class));
+        ps.close();
+        assertEquals(prepares + 2, driver.calls("prepareStatement"));
+        assertEquals(0, pool.getStatementCacheHits());
+    }
+
+    @Test
+    public void statementPreparedWithOtherOptionsIsNotShared() throws Exception
+    {
+        conn = pool.getConnection();
+        int prepares = driver.calls("prepareStatement");
+        conn.prepareStatement(SQL).close();
+        conn.prepareStatement(SQL, Statement.RETURN_GENERATED_KEYS).close();
+        conn.prepareStatement(SQL, Statement.RETURN_GENERATED_KEYS).close();
+        assertEquals(prepares + 2, driver.calls("prepareStatement"));
+        assertEquals(1, pool.getStatementCacheHits());
+    }
+}